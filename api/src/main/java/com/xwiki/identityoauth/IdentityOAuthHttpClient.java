@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * The HTTP client shared by the {@link IdentityOAuthProvider} implementations to call the remote services. It keeps
+ * the connections to each host alive between requests and uses HTTP/2 where the server offers it, so that the token,
+ * identity and picture requests of a login do not each pay a TCP and TLS handshake. The timeouts are configured in
+ * xwiki.cfg with the properties {@code xwiki.idoauth.http.connectTimeout} and {@code xwiki.idoauth.http.readTimeout}
+ * (in milliseconds).
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Role
+@Unstable
+public interface IdentityOAuthHttpClient
+{
+    /**
+     * Starts a request with the configured read timeout.
+     *
+     * @param uri the URI to request.
+     * @return the request builder, to complete with the method, headers and body.
+     */
+    HttpRequest.Builder newRequest(URI uri);
+
+    /**
+     * Sends a request over a pooled connection, waiting for the response.
+     *
+     * @param request     the request, preferably started with {@link #newRequest(URI)}.
+     * @param bodyHandler how to read the body of the response.
+     * @param <T>         the type of the body.
+     * @return the response, whatever its status.
+     * @throws IOException if the request cannot be sent, times out or is interrupted.
+     */
+    <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException;
+
+    /**
+     * Provides the measures of the requests sent, per host.
+     *
+     * @return the measures, keyed by host and measure (e.g. {@code login.example.com.requests}).
+     */
+    Map<String, Long> getMetrics();
+}
@@ -19,7 +19,9 @@
  */
 package com.xwiki.identityoauth;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
@@ -115,4 +117,18 @@ public interface IdentityOAuthManager
      */
     void clearAllSessionInfos();
 
+    /**
+     * Provides the measures of the OAuth dialogs: latencies, successes, failures and phases in progress.
+     *
+     * @return the measures, keyed by provider, phase and measure (e.g. {@code google.TOKEN_EXCHANGE.p95}), those of
+     *         the outbound requests, keyed by host and measure (e.g. {@code http.login.example.com.requests}), and
+     *         those of the caches, queues and background tasks (e.g. {@code tokenWallet.size}); none by default.
+     * @since 1.9.1
+     */
+    @Unstable
+    default Map<String, Long> getMetrics()
+    {
+        return Collections.emptyMap();
+    }
+
 }
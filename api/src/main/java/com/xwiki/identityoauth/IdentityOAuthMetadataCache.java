@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth;
+
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+
+/**
+ * Keeps the metadata that the OpenID Connect providers publish: the discovery documents and the key sets (JWKS). The
+ * metadata is fetched once, refreshed in the background as allowed by the {@code Cache-Control} headers of the
+ * responses, and kept available while it is refreshed or while the remote endpoint fails, so that neither the
+ * initialization of the providers nor the logins wait for the metadata endpoints.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Role
+@Unstable
+public interface IdentityOAuthMetadataCache
+{
+    /**
+     * Provides the discovery document of an issuer, read at {@code <issuer>/.well-known/openid-configuration}.
+     *
+     * @param issuer the URL of the issuer.
+     * @return the properties of the discovery document, e.g. {@code token_endpoint} or {@code jwks_uri}.
+     * @throws IdentityOAuthException if the document was never fetched and cannot be fetched.
+     */
+    Map<String, Object> getProviderMetadata(String issuer) throws IdentityOAuthException;
+
+    /**
+     * Provides the key set published at a URL.
+     *
+     * @param jwksUri the URL of the key set, usually the {@code jwks_uri} of the discovery document.
+     * @return the key set.
+     * @throws IdentityOAuthException if the key set was never fetched and cannot be fetched.
+     */
+    JWKSet getKeySet(String jwksUri) throws IdentityOAuthException;
+
+    /**
+     * Provides a key of a key set. If the key is not in the cached key set, which happens when the provider rotates
+     * its keys, the key set is fetched again (at most once per minute by default).
+     *
+     * @param jwksUri the URL of the key set.
+     * @param keyId   the identifier of the key, as found in the {@code kid} header of a token.
+     * @return the key or null if the provider does not publish it.
+     * @throws IdentityOAuthException if the key set was never fetched and cannot be fetched.
+     */
+    JWK getKey(String jwksUri, String keyId) throws IdentityOAuthException;
+
+    /**
+     * Forgets the metadata of an issuer or a key set, e.g. when a provider is configured with another issuer.
+     *
+     * @param uri the URL of the issuer or of the key set.
+     */
+    void invalidate(String uri);
+}
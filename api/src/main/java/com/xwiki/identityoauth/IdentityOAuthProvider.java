@@ -32,7 +32,9 @@ import org.xwiki.component.annotation.Role;
 import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
- * The specification of the methods that an implementation identity provider should offer.
+ * The specification of the methods that an implementation identity provider should offer. Implementations are
+ * encouraged to send their requests with the injected {@link IdentityOAuthHttpClient}, which reuses the connections
+ * across logins.
  *
  * @version $Id$
  * @since 1.0
@@ -113,6 +115,87 @@ public interface IdentityOAuthProvider
      */
     Pair<String, Date> createToken(String authCode);
 
+    /**
+     * Returns the tokens of the token response: the access token, its expiry date and, when returned, the
+     * refresh-token and the ID token. The refresh-token is kept by the wiki and given to {@link #refreshToken(String)}.
+     * When an ID token is returned and {@link #getOIDCIssuer()}, {@link #getClientId()} are given, the ID token is
+     * validated locally and the identity is built from its claims with {@link #createIdentityFromClaims(Map)}, sparing
+     * the call to {@link #fetchIdentityDetails(String)}.
+     *
+     * @param authCode the long-term authorization code
+     * @return the tokens; by default the result of {@link #createToken(String)}, without refresh-token nor ID token.
+     * @since 1.9.1
+     */
+    default IdentityOAuthTokens createTokens(String authCode)
+    {
+        Pair<String, Date> token = createToken(authCode);
+        return token != null ? new IdentityOAuthTokens(token.getLeft(), token.getRight(), null, null) : null;
+    }
+
+    /**
+     * @return the issuer of the ID tokens, whose discovery document gives the keys that sign them, or null if the ID
+     *     tokens are not validated locally (the default).
+     * @since 1.9.1
+     */
+    default String getOIDCIssuer()
+    {
+        return null;
+    }
+
+    /**
+     * @return the client id of the wiki at the provider, which the ID tokens must have as audience, or null if the ID
+     *     tokens are not validated locally (the default).
+     * @since 1.9.1
+     */
+    default String getClientId()
+    {
+        return null;
+    }
+
+    /**
+     * Provides the {@code nonce} parameter sent with the authorization request which the tokens being received answer,
+     * so that the ID token is only accepted if it carries the same value. This is called while processing the return
+     * of the browser, in the same session as {@link #getRemoteAuthorizationUrl(String)}.
+     *
+     * @return the nonce sent, or null if none was sent (the default), in which case the nonce of the ID token is not
+     *     checked.
+     * @since 1.9.1
+     */
+    default String getIdTokenNonce()
+    {
+        return null;
+    }
+
+    /**
+     * Builds the identity from the claims of a validated ID token. The issuer, audience and validity of the token are
+     * checked before this call.
+     *
+     * @param claims the claims of the ID token, e.g. {@code sub}, {@code email} or {@code given_name}.
+     * @return the identity, or null if the claims are not sufficient, in which case
+     *     {@link #fetchIdentityDetails(String)} is called (the default).
+     * @since 1.9.1
+     */
+    default AbstractIdentityDescription createIdentityFromClaims(Map<String, Object> claims)
+    {
+        return null;
+    }
+
+    /**
+     * Creates a new access token to replace one which is about to expire, using the refresh-token received with it.
+     * This is called in the background, ahead of the expiry, so that
+     * {@link IdentityOAuthManager#requestCurrentToken(String)} serves valid tokens.
+     *
+     * @param refreshToken the refresh-token returned by {@link #createTokens(String)} or by the last call of this
+     *                     method.
+     * @return the new access token, its expiry date and the new refresh-token (or null to keep using the given one),
+     *     or null if the token cannot be refreshed (the default).
+     * @since 1.9.1
+     */
+    default IdentityOAuthTokens refreshToken(String refreshToken)
+    {
+        return null;
+    }
+
     /**
      * Analyzes the parameters of the redirected URL of the browser coming from the authorization dialog and fetches the
      * authorization code that can be used to create tokens.
@@ -131,16 +214,40 @@ public interface IdentityOAuthProvider
     AbstractIdentityDescription fetchIdentityDetails(String token);
 
     /**
-     * Opens the stream of the user image file if it was modified later than the given date.
+     * Opens the stream of the user image file if it was modified later than the given date. Implementations are
+     * encouraged to make a conditional request using this date and to return null when the remote server answers that
+     * the image is not modified.
      *
-     * @param ifModifiedSince Only fetch the file if it is modified after this date.
+     * @param ifModifiedSince Only fetch the file if it is modified after this date (null if no image was stored).
      * @param id              the currently collected identity-description.
      * @param token           the currently valid token.
-     * @return A triple made of inputstream, media-type, and possibly guessed filename.
+     * @return A triple made of inputstream, media-type, and possibly guessed filename, or null if the image is not
+     * modified.
      */
     Triple<InputStream, String, String> fetchUserImage(Date ifModifiedSince, AbstractIdentityDescription id,
             String token);
 
+    /**
+     * Opens the stream of the user image file if it differs from the stored one. Implementations are encouraged to
+     * make a conditional request using the given date and entity-tag, and to return the entity-tag of the image
+     * received so that it is given at the next call. This is called in the background, after the login.
+     *
+     * @param ifModifiedSince Only fetch the file if it is modified after this date (null if no image was stored).
+     * @param ifNoneMatch     the entity-tag returned with the stored image (null if none was returned).
+     * @param id              the currently collected identity-description, which is not to be modified.
+     * @param token           the currently valid token.
+     * @return the triple made of inputstream, media-type and possibly guessed filename, with the entity-tag of the
+     *     image or null, or null if the image is not modified; by default the result of
+     *     {@link #fetchUserImage(Date, AbstractIdentityDescription, String)} without entity-tag.
+     * @since 1.9.1
+     */
+    default Pair<Triple<InputStream, String, String>, String> fetchUserImage(Date ifModifiedSince, String ifNoneMatch,
+        AbstractIdentityDescription id, String token)
+    {
+        Triple<InputStream, String, String> image = fetchUserImage(ifModifiedSince, id, token);
+        return image != null ? Pair.of(image, null) : null;
+    }
+
     /**
      * Allows to add provider-specific XWikiObjects to the user-object.
      *
@@ -19,7 +19,9 @@
  */
 package com.xwiki.identityoauth;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -32,6 +34,7 @@ import org.xwiki.security.authorization.Right;
 import org.xwiki.stability.Unstable;
 
 import com.xwiki.identityoauth.configuration.IdentityOAuthGeneralConfiguration;
+import com.xwiki.identityoauth.internal.IdentityOAuthReloadScheduler;
 
 /**
  * Script service containing the methods used by the view files contained in the ui module.
@@ -54,6 +57,9 @@ public class IdentityOAuthScriptService implements ScriptService
     @Inject
     private ContextualAuthorizationManager authorizationManager;
 
+    @Inject
+    private IdentityOAuthReloadScheduler reloadScheduler;
+
     /**
      * Get the default provider value set on the Identity OAuth general configuration.
      *
@@ -144,4 +150,67 @@ public class IdentityOAuthScriptService implements ScriptService
     {
         manager.clearAllSessionInfos();
     }
+
+    /**
+     * Provides the measures of the OAuth dialogs, to find which provider or phase is slow. For administrators only.
+     *
+     * @return the measures, keyed by provider, phase and measure (e.g. {@code google.TOKEN_EXCHANGE.p95}), those of
+     *         the outbound requests, keyed by host and measure (e.g. {@code http.login.example.com.requests}), and
+     *         those of the caches, queues and background tasks (e.g. {@code tokenWallet.size}).
+     * @since 1.9.1
+     */
+    @Unstable
+    public Map<String, Long> getMetrics()
+    {
+        checkAdmin();
+        return manager.getMetrics();
+    }
+
+    /**
+     * Indicates if a reload of the configuration, requested by the edition of a configuration page, is waiting to be
+     * run. For administrators only.
+     *
+     * @return true if a reload is requested and has not started yet.
+     * @since 1.9.1
+     */
+    @Unstable
+    public boolean isReloadPending()
+    {
+        checkAdmin();
+        return reloadScheduler.isReloadPending();
+    }
+
+    /**
+     * Gives the date of the last reload of the configuration run in the background. For administrators only.
+     *
+     * @return the date at which the last reload ended, or null if none was run since the start.
+     * @since 1.9.1
+     */
+    @Unstable
+    public Date getLastReloadDate()
+    {
+        checkAdmin();
+        return reloadScheduler.getLastReloadDate();
+    }
+
+    /**
+     * Indicates if the last reload of the configuration run in the background failed, in which case the providers of
+     * the previous configuration are still in use. For administrators only.
+     *
+     * @return true if the last reload ended with an error.
+     * @since 1.9.1
+     */
+    @Unstable
+    public boolean isLastReloadFailed()
+    {
+        checkAdmin();
+        return reloadScheduler.isLastReloadFailed();
+    }
+
+    private void checkAdmin()
+    {
+        if (!authorizationManager.hasAccess(Right.ADMIN)) {
+            throw new IllegalStateException("This method is for the administrators");
+        }
+    }
 }
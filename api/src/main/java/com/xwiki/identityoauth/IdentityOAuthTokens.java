@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth;
+
+import java.util.Date;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The tokens of a token response of a provider: the access token with its expiry date and, when returned, the
+ * refresh-token and the ID token.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Unstable
+public class IdentityOAuthTokens
+{
+    private final String accessToken;
+
+    private final Date expiry;
+
+    private final String refreshToken;
+
+    private final String idToken;
+
+    /**
+     * @param accessToken  the token using which a resource operation can be performed.
+     * @param expiry       the expiry date of the access token, or null if unknown.
+     * @param refreshToken the refresh-token to create a new access token with, or null if none was returned.
+     * @param idToken      the ID token of OpenID Connect providers, or null if none was returned.
+     */
+    public IdentityOAuthTokens(String accessToken, Date expiry, String refreshToken, String idToken)
+    {
+        this.accessToken = accessToken;
+        this.expiry = expiry;
+        this.refreshToken = refreshToken;
+        this.idToken = idToken;
+    }
+
+    /**
+     * @return the token using which a resource operation can be performed.
+     */
+    public String getAccessToken()
+    {
+        return accessToken;
+    }
+
+    /**
+     * @return the expiry date of the access token, or null if unknown.
+     */
+    public Date getExpiry()
+    {
+        return expiry;
+    }
+
+    /**
+     * @return the refresh-token to create a new access token with, or null if none was returned.
+     */
+    public String getRefreshToken()
+    {
+        return refreshToken;
+    }
+
+    /**
+     * @return the ID token of OpenID Connect providers, or null if none was returned.
+     */
+    public String getIdToken()
+    {
+        return idToken;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Encodes the values of the authentication cookie with AES-GCM, which both encrypts and authenticates them.
+ * <p>
+ * An encoded value is made of the identifier of the key used, a dot, and the URL-safe Base64 encoding (without
+ * padding) of the initialization vector followed by the encrypted text and its tag. The identifier is derived from the
+ * key so that the values encoded with a previous key can still be decoded after a new key is configured, as long as
+ * the previous one is kept among the previous keys. The values encoded with TripleDES by the former versions, which
+ * contain no dot, are decoded with the legacy key if one is given, and only until the given deadline: these values
+ * are not authenticated, their blocks could be recombined into values which were never emitted.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+final class AuthenticationCookieCodec
+{
+    private static final String AES_ALGORITHM = "AES";
+
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final String LEGACY_ALGORITHM = "TripleDES";
+
+    private static final int LEGACY_KEY_LENGTH = 24;
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 16;
+
+    private static final int KEY_ID_LENGTH = 4;
+
+    private static final char KEY_ID_SEPARATOR = '.';
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String, SecretKey> keys = new HashMap<>();
+
+    private final String currentKeyId;
+
+    private final CipherPool gcmCiphers = new CipherPool(() -> Cipher.getInstance(GCM_TRANSFORMATION));
+
+    private final CipherPool legacyCiphers;
+
+    private final long legacyDeadline;
+
+    /**
+     * @param currentKey     the secret used to encode the values.
+     * @param previousKeys   the secrets used formerly, whose values can still be decoded.
+     * @param legacyKey      the secret of the TripleDES values, at least 24 characters long, or null to reject them.
+     * @param legacyDeadline the time (in milliseconds since the epoch) after which the TripleDES values are rejected.
+     * @throws GeneralSecurityException if the keys cannot be derived.
+     */
+    AuthenticationCookieCodec(String currentKey, List<String> previousKeys, String legacyKey, long legacyDeadline)
+        throws GeneralSecurityException
+    {
+        this.legacyDeadline = legacyDeadline;
+        for (String previousKey : previousKeys) {
+            addKey(previousKey);
+        }
+        this.currentKeyId = addKey(currentKey);
+        if (legacyKey != null) {
+            SecretKeySpec key = new SecretKeySpec(legacyKey.getBytes(), 0, LEGACY_KEY_LENGTH, LEGACY_ALGORITHM);
+            this.legacyCiphers = new CipherPool(() -> {
+                Cipher cipher = Cipher.getInstance(LEGACY_ALGORITHM);
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                return cipher;
+            });
+            // Checks the legacy key.
+            this.legacyCiphers.release(this.legacyCiphers.borrow());
+        } else {
+            this.legacyCiphers = null;
+        }
+    }
+
+    /**
+     * @param text the text to encode.
+     * @return the encoded text, which can be used as a cookie value.
+     * @throws GeneralSecurityException if the encryption fails.
+     */
+    String encode(String text) throws GeneralSecurityException
+    {
+        byte[] plainText = text.getBytes(StandardCharsets.UTF_8);
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        // The initialization vector, the encrypted text and its tag are written in a single array.
+        byte[] encoded = new byte[IV_LENGTH + plainText.length + TAG_LENGTH];
+        System.arraycopy(iv, 0, encoded, 0, IV_LENGTH);
+
+        Cipher cipher = gcmCiphers.borrow();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.get(currentKeyId), new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, iv));
+        cipher.updateAAD(currentKeyId.getBytes(StandardCharsets.US_ASCII));
+        cipher.doFinal(plainText, 0, plainText.length, encoded, IV_LENGTH);
+        gcmCiphers.release(cipher);
+
+        return currentKeyId + KEY_ID_SEPARATOR + ENCODER.encodeToString(encoded);
+    }
+
+    /**
+     * @param value the value to decode.
+     * @return the text decoded, or null if the value was not encoded with a known key.
+     * @throws GeneralSecurityException if the value was altered or encoded with another key of the same identifier.
+     */
+    String decode(String value) throws GeneralSecurityException
+    {
+        int separatorIndex = value.indexOf(KEY_ID_SEPARATOR);
+        if (separatorIndex < 0) {
+            return decodeLegacy(value);
+        }
+        String keyId = value.substring(0, separatorIndex);
+        SecretKey key = keys.get(keyId);
+        if (key == null) {
+            return null;
+        }
+        byte[] encoded;
+        try {
+            encoded = DECODER.decode(value.substring(separatorIndex + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (encoded.length < IV_LENGTH + TAG_LENGTH) {
+            return null;
+        }
+
+        Cipher cipher = gcmCiphers.borrow();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, encoded, 0, IV_LENGTH));
+        cipher.updateAAD(keyId.getBytes(StandardCharsets.US_ASCII));
+        byte[] plainText = cipher.doFinal(encoded, IV_LENGTH, encoded.length - IV_LENGTH);
+        gcmCiphers.release(cipher);
+
+        return new String(plainText, StandardCharsets.UTF_8);
+    }
+
+    private String decodeLegacy(String value) throws GeneralSecurityException
+    {
+        if (legacyCiphers == null || System.currentTimeMillis() > legacyDeadline) {
+            return null;
+        }
+        byte[] encrypted;
+        try {
+            // The former versions replaced the Base64 padding with underscores.
+            encrypted = Base64.getDecoder().decode(value.replace('_', '='));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        Cipher cipher = legacyCiphers.borrow();
+        byte[] plainText = cipher.doFinal(encrypted);
+        legacyCiphers.release(cipher);
+        return new String(plainText);
+    }
+
+    private String addKey(String secret) throws GeneralSecurityException
+    {
+        byte[] keyBytes = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+        byte[] keyDigest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        String keyId = Hex.encodeHexString(keyDigest).substring(0, KEY_ID_LENGTH * 2);
+        keys.put(keyId, new SecretKeySpec(keyBytes, AES_ALGORITHM));
+        return keyId;
+    }
+}
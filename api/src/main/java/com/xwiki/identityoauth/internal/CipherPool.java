@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.security.GeneralSecurityException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+/**
+ * A pool of ciphers, which are not thread-safe: each one is used by a single thread at a time. A cipher is taken from
+ * the pool for each operation and given back afterwards; new ones are created when all are in use. The pool does not
+ * rely on thread-locals so that it stays small whatever the number of (virtual) threads.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+final class CipherPool
+{
+    private static final int MAX_IDLE_CIPHERS = 16;
+
+    private final CipherFactory factory;
+
+    private final Deque<Cipher> idleCiphers = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    CipherPool(CipherFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * @return a cipher for the exclusive use of the caller, to be given back with {@link #release(Cipher)} once the
+     * operation succeeded (a cipher which failed is not given back since its state is unknown).
+     * @throws GeneralSecurityException if a new cipher cannot be created.
+     */
+    Cipher borrow() throws GeneralSecurityException
+    {
+        Cipher cipher = idleCiphers.pollFirst();
+        if (cipher != null) {
+            idleCount.decrementAndGet();
+            return cipher;
+        }
+        return factory.create();
+    }
+
+    /**
+     * @param cipher a cipher obtained from {@link #borrow()}, which is not used anymore by the caller.
+     */
+    void release(Cipher cipher)
+    {
+        if (idleCount.incrementAndGet() <= MAX_IDLE_CIPHERS) {
+            idleCiphers.offerFirst(cipher);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates the ciphers of a pool.
+     */
+    @FunctionalInterface
+    interface CipherFactory
+    {
+        /**
+         * @return a new cipher.
+         * @throws GeneralSecurityException if the cipher cannot be created.
+         */
+        Cipher create() throws GeneralSecurityException;
+    }
+}
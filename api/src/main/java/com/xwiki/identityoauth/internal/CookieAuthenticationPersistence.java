@@ -19,25 +19,27 @@
  */
 package com.xwiki.identityoauth.internal;
 
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.servlet.http.Cookie;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.configuration.ConfigurationSource;
 
@@ -47,6 +49,15 @@ import com.xwiki.identityoauth.IdentityOAuthException;
 /**
  * Tools to help storing and retrieving enriched information within cookies such as the linked OAuth identity profile.
  * <p>
+ * The values are encrypted and authenticated by an {@link AuthenticationCookieCodec} with the configured key; the
+ * keys listed in the property {@code xwiki.idoauth.previousEncryptionKeys} of xwiki.cfg (comma-separated) allow to
+ * rotate the key without invalidating the cookies already emitted. The TripleDES cookies of the former versions, which
+ * are not authenticated, are only read during the lifetime of a cookie (one hour) after the start of the wiki, so that
+ * the users logged in before an upgrade stay logged in; setting {@code xwiki.idoauth.legacyCookies} to false rejects
+ * them from the start. The users read from the cookies are cached per cookie
+ * value (at most {@code xwiki.idoauth.cookieCache.size} values, for the lifetime of a cookie) so that the requests
+ * sending the same cookie again do not decrypt it.
+ * <p>
  * Inspiration: xwiki-authenticator-trusted https://github.com/xwiki-contrib/xwiki-authenticator-trusted/edit/master\
  * /xwiki-authenticator-trusted-api/src/main/java/org/xwiki/contrib/authentication\
  * /internal/CookieAuthenticationPersistenceStore.java.
@@ -56,7 +67,7 @@ import com.xwiki.identityoauth.IdentityOAuthException;
  */
 @Component(roles = CookieAuthenticationPersistence.class)
 @Singleton
-public class CookieAuthenticationPersistence implements Initializable
+public class CookieAuthenticationPersistence implements Initializable, Disposable
 {
     private static final String AUTHENTICATION_CONFIG_PREFIX = "xwiki.idoauth";
 
@@ -70,7 +81,17 @@ public class CookieAuthenticationPersistence implements Initializable
 
     private static final String XWIKI_ENCRYPTION_KEY_PROPERTY = "xwiki.authentication.encryptionKey";
 
-    private static final String CIPHER_ALGORITHM = "TripleDES";
+    private static final String PREVIOUS_ENCRYPTION_KEYS_PROPERTY =
+        AUTHENTICATION_CONFIG_PREFIX + ".previousEncryptionKeys";
+
+    private static final String LEGACY_COOKIES_PROPERTY = AUTHENTICATION_CONFIG_PREFIX + ".legacyCookies";
+
+    private static final String COOKIE_CACHE_SIZE_PROPERTY = AUTHENTICATION_CONFIG_PREFIX + ".cookieCache.size";
+
+    private static final int DEFAULT_COOKIE_CACHE_SIZE = 1000;
+
+    // in seconds
+    private static final int COOKIE_MAX_AGE = 3600;
 
     private static final String AUTHENTICATION_COOKIE = "XWIKITRUSTEDAUTH";
 
@@ -79,10 +100,6 @@ public class CookieAuthenticationPersistence implements Initializable
      */
     private static final String COOKIE_DOT_PFX = ".";
 
-    private static final String EQUAL_SIGN = "=";
-
-    private static final String UNDERSCORE = "_";
-
     private static final String PERMANENT_HINT = "permanent";
 
     @Inject
@@ -97,9 +114,14 @@ public class CookieAuthenticationPersistence implements Initializable
 
     private String[] cookieDomains;
 
-    private Cipher encryptionCipher;
+    private AuthenticationCookieCodec codec;
+
+    // cookie value -> user name, so that the cookies sent again and again are decrypted once
+    private Cache<String> decryptedCookies;
+
+    private final AtomicLong cacheHits = new AtomicLong();
 
-    private Cipher decryptionCipher;
+    private final AtomicLong cacheMisses = new AtomicLong();
 
     private String encryptionKey;
 
@@ -113,6 +135,9 @@ public class CookieAuthenticationPersistence implements Initializable
     @Inject
     private ComponentManager componentManager;
 
+    @Inject
+    private CacheManager cacheManager;
+
     /**
      * Builds a configured object.
      */
@@ -134,12 +159,38 @@ public class CookieAuthenticationPersistence implements Initializable
             this.cookieDomains = null;
         }
 
+        List<String> previousKeys = new ArrayList<>();
+        String previousKeyList = xwikiCfg.getProperty(PREVIOUS_ENCRYPTION_KEYS_PROPERTY, "");
+        for (String previousKey : StringUtils.split(previousKeyList, ',')) {
+            previousKeys.add(previousKey.trim());
+        }
+        // The cookies encrypted with TripleDES by the former versions are read until the last one emitted before the
+        // start has expired, unless disabled.
+        String legacyKey = xwikiCfg.getProperty(LEGACY_COOKIES_PROPERTY, true) ? encryptionKey : null;
+        long legacyDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(COOKIE_MAX_AGE);
         try {
-            encryptionCipher = getCipher(true);
-            decryptionCipher = getCipher(false);
+            codec = new AuthenticationCookieCodec(encryptionKey, previousKeys, legacyKey, legacyDeadline);
         } catch (Exception e) {
             throw new IdentityOAuthException("Unable to initialize ciphers", e);
         }
+
+        // A cookie value is not used longer than the cookie itself.
+        LRUCacheConfiguration cacheConfiguration = new LRUCacheConfiguration("identityoauth.cookies",
+            xwikiCfg.getProperty(COOKIE_CACHE_SIZE_PROPERTY, DEFAULT_COOKIE_CACHE_SIZE));
+        cacheConfiguration.getLRUEvictionConfiguration().setLifespan(COOKIE_MAX_AGE);
+        try {
+            decryptedCookies = cacheManager.createNewCache(cacheConfiguration);
+        } catch (CacheException e) {
+            throw new IdentityOAuthException("Unable to create the cache of the authentication cookies", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (decryptedCookies != null) {
+            decryptedCookies.dispose();
+        }
     }
 
     /**
@@ -162,19 +213,56 @@ public class CookieAuthenticationPersistence implements Initializable
     {
         logger.debug("retrieve cookie " + cookiePrefix + AUTHENTICATION_COOKIE);
         String cookie = getCookieValue(cookiePrefix + AUTHENTICATION_COOKIE);
-        return decryptText(cookie);
+        if (StringUtils.isEmpty(cookie)) {
+            return null;
+        }
+        String userId = decryptedCookies.get(cookie);
+        if (userId != null) {
+            cacheHits.incrementAndGet();
+            return userId;
+        }
+        cacheMisses.incrementAndGet();
+        userId = decryptText(cookie);
+        if (userId != null) {
+            decryptedCookies.set(cookie, userId);
+        }
+        return userId;
     }
 
     /**
-     * Store the user-information within the cookie.
+     * @return the number of cookies whose user was found in the cache of decrypted cookies.
+     */
+    long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of cookies which had to be decrypted.
+     */
+    long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Store the user-information within the cookie. If it cannot be encrypted, the cookie is removed instead.
      *
      * @param userUid the user-name (without xwiki. prefix)
      * @since 1.0
      */
     void setUserId(String userUid)
     {
-        Cookie cookie = new Cookie(cookiePrefix + AUTHENTICATION_COOKIE, encryptText(userUid));
-        cookie.setMaxAge(3600);
+        String value = encryptText(userUid);
+        Cookie cookie;
+        if (value != null) {
+            cookie = new Cookie(cookiePrefix + AUTHENTICATION_COOKIE, value);
+            cookie.setMaxAge(COOKIE_MAX_AGE);
+        } else {
+            // The user name is never sent in clear: the cookie already emitted is removed instead.
+            cookie = new Cookie(cookiePrefix + AUTHENTICATION_COOKIE, "");
+            cookie.setMaxAge(0);
+        }
         cookie.setPath(cookiePath);
         String cookieDomain = getCookieDomain();
         if (cookieDomain != null) {
@@ -228,32 +316,13 @@ public class CookieAuthenticationPersistence implements Initializable
         return null;
     }
 
-    private Cipher getCipher(boolean encrypt)
-        throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IdentityOAuthException
-    {
-        Cipher cipher;
-        String secretKey = encryptionKey;
-        if (secretKey != null) {
-            SecretKeySpec key = new SecretKeySpec(secretKey.getBytes(), 0, 24, CIPHER_ALGORITHM);
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
-        } else {
-            throw new IdentityOAuthException("Unable to initialize cipher.");
-        }
-        return cipher;
-    }
-
     private String encryptText(String text)
     {
         try {
-            logger.debug("text to encrypt : " + text);
-            String encryptedText = new String(Base64.encodeBase64(
-                    encryptionCipher.doFinal(text.getBytes()))).replaceAll(EQUAL_SIGN, UNDERSCORE);
-            logger.debug("encrypted text : " + encryptedText);
-            return encryptedText;
+            return codec.encode(text);
         } catch (Exception e) {
-            logger.error("Failed to encrypt text.", e);
-            return text;
+            logger.error("Failed to encrypt the authentication cookie, it is not set.", e);
+            return null;
         }
     }
 
@@ -263,15 +332,11 @@ public class CookieAuthenticationPersistence implements Initializable
             return null;
         }
         try {
-            logger.debug("text to decrypt : " + text);
-            String decryptedText = new String(decryptionCipher.doFinal(
-                    Base64.decodeBase64(text.replaceAll(UNDERSCORE, EQUAL_SIGN).getBytes(
-                            StandardCharsets.ISO_8859_1))));
-            logger.debug("decrypted text : " + decryptedText);
-            return decryptedText;
+            return codec.decode(text);
         } catch (Exception e) {
-            logger.error("Failed to decrypt text.", e);
-            return text;
+            // An altered or forged value is never taken for a user name.
+            logger.warn("Failed to decrypt the authentication cookie: [{}].", e.toString());
+            return null;
         }
     }
 
@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xwiki.identityoauth.IdentityOAuthHttpClient;
+
+/**
+ * Default implementation of {@link IdentityOAuthHttpClient}, based on the HTTP client of the JDK. A single client is
+ * built at initialization and reused for all the requests: it keeps a pool of connections per host and negotiates
+ * HTTP/2 when the server supports it (property {@code xwiki.idoauth.http.http2} of xwiki.cfg, true by default). The
+ * idle connections are closed after the keep-alive timeout of the JDK (system property
+ * {@code jdk.httpclient.keepalive.timeout}, 1200 seconds by default).
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component
+@Singleton
+public class DefaultIdentityOAuthHttpClient implements IdentityOAuthHttpClient, Initializable
+{
+    private static final String CONNECT_TIMEOUT_PROPERTY = "xwiki.idoauth.http.connectTimeout";
+
+    private static final String READ_TIMEOUT_PROPERTY = "xwiki.idoauth.http.readTimeout";
+
+    private static final String HTTP2_PROPERTY = "xwiki.idoauth.http.http2";
+
+    private static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private static final long DEFAULT_READ_TIMEOUT = 30000;
+
+    private static final char SEPARATOR = '.';
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private HttpClient httpClient;
+
+    private Duration readTimeout;
+
+    private final Map<String, HostMetrics> hostMetrics = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize()
+    {
+        this.readTimeout = Duration.ofMillis(xwikiCfg.getProperty(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT));
+        boolean http2 = xwikiCfg.getProperty(HTTP2_PROPERTY, true);
+        this.httpClient = HttpClient.newBuilder()
+            .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(xwikiCfg.getProperty(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT)))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            // Like the former HttpURLConnection requests, goes through the proxy configured for the JVM.
+            .proxy(ProxySelector.getDefault())
+            .build();
+    }
+
+    @Override
+    public HttpRequest.Builder newRequest(URI uri)
+    {
+        return HttpRequest.newBuilder(uri).timeout(readTimeout);
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException
+    {
+        HostMetrics metrics = hostMetrics.computeIfAbsent(getHost(request.uri()), k -> new HostMetrics());
+        metrics.requests.incrementAndGet();
+        metrics.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<T> response = httpClient.send(request, bodyHandler);
+            if (response.version() == HttpClient.Version.HTTP_2) {
+                metrics.http2Responses.incrementAndGet();
+            }
+            if (response.statusCode() >= 400) {
+                metrics.errorResponses.incrementAndGet();
+            }
+            return response;
+        } catch (IOException e) {
+            metrics.failures.incrementAndGet();
+            log.debug("Request to [{}] failed.", request.uri(), e);
+            throw e;
+        } catch (InterruptedException e) {
+            metrics.failures.incrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+        } finally {
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            metrics.totalTime.addAndGet(duration);
+            metrics.maxTime.accumulateAndGet(duration, Math::max);
+            metrics.inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getMetrics()
+    {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, HostMetrics> entry : hostMetrics.entrySet()) {
+            String prefix = entry.getKey() + SEPARATOR;
+            HostMetrics metrics = entry.getValue();
+            snapshot.put(prefix + "requests", metrics.requests.get());
+            snapshot.put(prefix + "inFlight", metrics.inFlight.get());
+            snapshot.put(prefix + "failures", metrics.failures.get());
+            snapshot.put(prefix + "errorResponses", metrics.errorResponses.get());
+            snapshot.put(prefix + "http2Responses", metrics.http2Responses.get());
+            snapshot.put(prefix + "totalTime", metrics.totalTime.get());
+            snapshot.put(prefix + "maxTime", metrics.maxTime.get());
+        }
+        return snapshot;
+    }
+
+    private String getHost(URI uri)
+    {
+        return uri.getPort() < 0 ? String.valueOf(uri.getHost()) : uri.getHost() + ':' + uri.getPort();
+    }
+
+    /**
+     * The counters of the requests sent to one host; the times are in milliseconds.
+     */
+    private static final class HostMetrics
+    {
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong inFlight = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong errorResponses = new AtomicLong();
+
+        private final AtomicLong http2Responses = new AtomicLong();
+
+        private final AtomicLong totalTime = new AtomicLong();
+
+        private final AtomicLong maxTime = new AtomicLong();
+    }
+}
@@ -19,9 +19,7 @@
  */
 package com.xwiki.identityoauth.internal;
 
-import java.io.StringReader;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -32,22 +30,21 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
-import org.xwiki.rendering.converter.Converter;
-import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
-import org.xwiki.rendering.renderer.printer.WikiPrinter;
-import org.xwiki.rendering.syntax.Syntax;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthHttpClient;
 import com.xwiki.identityoauth.IdentityOAuthManager;
 import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.IdentityOAuthTokens;
 import com.xwiki.identityoauth.LifeCycle;
+import com.xwiki.identityoauth.internal.resource.ProviderLogo;
+import com.xwiki.identityoauth.internal.resource.ProviderLogoStore;
 
 /**
  * Set of methods accessible to the scripts using the IdentityOAuth functions. The manager is the entry point for the
@@ -66,7 +63,7 @@ import com.xwiki.identityoauth.LifeCycle;
 public class DefaultIdentityOAuthManager
     implements IdentityOAuthManager, Initializable, Disposable, IdentityOAuthConstants
 {
-    private LifeCycle lifeCycleState = LifeCycle.CONSTRUCTED;
+    private volatile LifeCycle lifeCycleState = LifeCycle.CONSTRUCTED;
 
     // own components
     @Inject
@@ -81,6 +78,9 @@ public class DefaultIdentityOAuthManager
     @Inject
     private IdentityOAuthProviderLoader managerInitiator;
 
+    @Inject
+    private IdentityOAuthLoginCodeRenderer loginCodeRenderer;
+
     // ------ services from the environment
     @Inject
     private Provider<XWikiContext> xwikiContextProvider;
@@ -89,15 +89,40 @@ public class DefaultIdentityOAuthManager
     private Logger log;
 
     @Inject
-    private Converter converter;
+    private Provider<IdentityOAuthSessionInfo> sessionInfoProvider;
 
     @Inject
-    private Provider<IdentityOAuthSessionInfo> sessionInfoProvider;
+    private IdentityOAuthTokenWallet tokenWallet;
 
-    // -------------------------------------------------
-    private Map<String, IdentityOAuthProvider> providers = new HashMap<>();
+    @Inject
+    private IdentityOAuthMetrics metrics;
+
+    @Inject
+    private IdentityOAuthHttpClient httpClient;
+
+    @Inject
+    private IdentityOAuthIdTokenValidator idTokenValidator;
+
+    // The refresher uses the manager to find the providers, thus it is resolved once the manager is built.
+    @Inject
+    private Provider<IdentityOAuthTokenRefresher> tokenRefresherProvider;
+
+    @Inject
+    private ProviderLogoStore logoStore;
+
+    @Inject
+    private IdentityOAuthAvatarSynchronizer avatarSynchronizer;
 
-    private List<ProviderConfig> providerConfigs = new ArrayList<>();
+    // The scheduler reloads the providers through the manager.
+    @Inject
+    private Provider<IdentityOAuthReloadScheduler> reloadSchedulerProvider;
+
+    @Inject
+    private Provider<CookieAuthenticationPersistence> cookiePersistenceProvider;
+
+    // -------------------------------------------------
+    // The registry is replaced as a whole at each reload so that request threads can read it without locking.
+    private volatile ProviderRegistry registry = ProviderRegistry.EMPTY;
 
     @Override
     public void initialize()
@@ -125,53 +150,39 @@ public class DefaultIdentityOAuthManager
     }
 
     /**
-     * Performs XWiki rendering and transformation on the loginCodes of each provider.
+     * Performs XWiki rendering and transformation on the loginCodes of each provider. The renderings are kept between
+     * calls, see {@link IdentityOAuthLoginCodeRenderer}.
      *
      * @return a list of rendered code in XHTML.
      */
     public List<String> renderLoginCodes()
     {
         startIfNeedBe(true);
-        List<String> renderedLoginCodes = new ArrayList<>(providerConfigs.size());
-        for (ProviderConfig config : providerConfigs) {
-            try {
-                String loginCode = config.getPreparedLoginCode();
-                // Convert input in XWiki Syntax 2.1 into XHTML. The result is stored in the printer.
-                if (config.getProvider().isReady()) {
-                    WikiPrinter printer = new DefaultWikiPrinter();
-                    converter.convert(new StringReader(loginCode), config.getLoginCodeSyntax(), Syntax.XHTML_1_0,
-                        printer);
-                    renderedLoginCodes.add(
-                        "<!-- IdentityOAuth Provider: " + config.getName() + " -->\r\n" + printer.toString());
-                } else {
-                    renderedLoginCodes.add("<!-- IdentityOAuth Provider:  " + config.getName() + " not ready -->\r\n");
-                }
-            } catch (Exception e) {
-                renderedLoginCodes.add("BROKEN RENDERING " + config.getName());
-                log.warn("Can't render (BROKEN RENDERING " + config.getName() + "): ", e);
-            }
-        }
-        return renderedLoginCodes;
+        return loginCodeRenderer.render(registry);
     }
 
     /**
-     * Removes all information about the services of IdentityOAuth within the session of this user.
+     * Removes all information about the services of IdentityOAuth within the session of this user. The tokens of the
+     * user, which are shared by the sessions of the user, are forgotten too. This is done at logout.
      */
     public void clearAllSessionInfos()
     {
-        for (String providerName : providers.keySet()) {
-            sessionInfoProvider.get().clear(providerName);
+        IdentityOAuthSessionInfo sessionInfo = sessionInfoProvider.get();
+        for (String providerName : registry.getProviders().keySet()) {
+            tokenWallet.remove(sessionInfo.getWalletOwner(), providerName);
         }
+        sessionInfo.clear(null);
     }
 
     /**
-     * Reloads the configuration from the wiki-objects.
+     * Reloads the configuration from the wiki-objects. The reloads are serialized so that a registry never replaces a
+     * more recent one; the readers are not blocked meanwhile.
      */
-    public void reloadConfig()
+    public synchronized void reloadConfig()
     {
         startIfNeedBe(false);
         log.info("Reloading config.");
-        providerConfigs = managerInitiator.rebuildProviders(providers);
+        publish(managerInitiator.rebuildProviders(registry));
     }
 
     /**
@@ -190,8 +201,10 @@ public class DefaultIdentityOAuthManager
             HttpServletRequest request = xwikiContextProvider.get().getRequest();
             String providerHint = request.getParameter(PROVIDER);
             IdentityOAuthProvider provider = getActiveProvider(providerHint);
-            String oauthBackPage = request.getParameter("browserLocation");
-            String redirectUrl = provider.getRemoteAuthorizationUrl(oauthBackPage);
+            String browserLocation = request.getParameter("browserLocation");
+            String redirectUrl = metrics.measure(providerHint, IdentityOAuthMetrics.Phase.AUTHORIZATION_URL,
+                () -> provider.getRemoteAuthorizationUrl(browserLocation));
+            String oauthBackPage = browserLocation;
             redirectUrl = managerInitiator.maybeModifyRedirectURL(redirectUrl);
 
             // populate sessionInfo with fresh data
@@ -269,28 +282,8 @@ public class DefaultIdentityOAuthManager
             // collect provider-name (an OAuth return is single-use)
             String providerHint = sessionInfo.getProviderAuthorizationRunning();
             sessionInfo.setProviderAuthorizationRunning(null);
-            IdentityOAuthProvider provider = getActiveProvider(providerHint);
-            String authorization =
-                provider.readAuthorizationFromReturn(xwikiContextProvider.get().getRequest().getParameterMap());
-            Pair<String, Date> token = provider.createToken(authorization);
-
-            // store auth and token
-            sessionInfo.setAuthorizationCode(providerHint, authorization);
-            sessionInfo.setToken(providerHint, token.getLeft());
-            sessionInfo.setTokenExpiry(providerHint, token.getRight());
-
-            IdentityOAuthProvider.AbstractIdentityDescription id = provider.fetchIdentityDetails(token.getLeft());
-            String xwikiUser = ioUserProc.updateXWikiUser(id, provider, token.getLeft());
-
-            // login at next call to the authenticator (the next http request)
-            sessionInfo.setUserToLogIn(xwikiUser);
-            log.debug("User will be logged-in.");
-
-            // process redirect
-            // getSessionInfo().xredirect is guaranteed to be not null in processOAuthStart
-            // we expect the final redirect to be an "allowed redirect" (probably the same URL as the current page)
-            xwikiContextProvider.get().getResponse().sendRedirect(sessionInfo.pickXredirect());
-            log.debug("Redirecting user to originally intended URL.");
+            metrics.measure(providerHint, IdentityOAuthMetrics.Phase.OAUTH_RETURN,
+                () -> completeOAuthReturn(sessionInfo, providerHint));
         } catch (Exception e) {
             log.warn("Trouble at processing OAuth return", e);
             xwikiContextProvider.get().getRequest().setAttribute("idoauth-error-message", e.getMessage());
@@ -299,6 +292,117 @@ public class DefaultIdentityOAuthManager
         return "ok";
     }
 
+    private Void completeOAuthReturn(IdentityOAuthSessionInfo sessionInfo, String providerHint) throws Exception
+    {
+        IdentityOAuthProvider provider = getActiveProvider(providerHint);
+        String authorization =
+            provider.readAuthorizationFromReturn(xwikiContextProvider.get().getRequest().getParameterMap());
+        IdentityOAuthTokens tokens = metrics.measure(providerHint,
+            IdentityOAuthMetrics.Phase.TOKEN_EXCHANGE, () -> provider.createTokens(authorization));
+
+        IdentityOAuthProvider.AbstractIdentityDescription identity = readIdentity(provider, providerHint, tokens);
+        ProviderConfig config = registry.getProviderConfig(providerHint);
+        String configFingerprint = config != null ? config.getFingerprint() : null;
+        String xwikiUser = metrics.measure(providerHint, IdentityOAuthMetrics.Phase.USER_RESOLUTION,
+            () -> ioUserProc.updateXWikiUser(identity, provider, configFingerprint, tokens.getAccessToken()));
+
+        // store auth and token, the session only keeps the name of their owner
+        tokenWallet.store(xwikiUser, providerHint, authorization, tokens);
+        sessionInfo.setWalletOwner(xwikiUser);
+
+        // login at next call to the authenticator (the next http request)
+        sessionInfo.setUserToLogIn(xwikiUser);
+        log.debug("User will be logged-in.");
+
+        // process redirect
+        // getSessionInfo().xredirect is guaranteed to be not null in processOAuthStart
+        // we expect the final redirect to be an "allowed redirect" (probably the same URL as the current page)
+        xwikiContextProvider.get().getResponse().sendRedirect(sessionInfo.pickXredirect());
+        log.debug("Redirecting user to originally intended URL.");
+        return null;
+    }
+
+    /**
+     * Reads the identity of the user from the claims of the ID token when the provider supports it. Otherwise, the
+     * identity is requested from the provider.
+     *
+     * @return the identity.
+     */
+    private IdentityOAuthProvider.AbstractIdentityDescription readIdentity(IdentityOAuthProvider provider,
+        String providerHint, IdentityOAuthTokens tokens) throws Exception
+    {
+        Map<String, Object> claims = metrics.measure(providerHint,
+            IdentityOAuthMetrics.Phase.ID_TOKEN_VALIDATION, () -> readIdTokenClaims(provider, tokens));
+        IdentityOAuthProvider.AbstractIdentityDescription id =
+            claims != null ? provider.createIdentityFromClaims(claims) : null;
+        if (id != null) {
+            return id;
+        }
+        return metrics.measure(providerHint, IdentityOAuthMetrics.Phase.IDENTITY_FETCH,
+            () -> provider.fetchIdentityDetails(tokens.getAccessToken()));
+    }
+
+    /**
+     * Validates the ID token when the provider supports it.
+     *
+     * @return the claims of the ID token, or null if there is none or if it is not valid.
+     */
+    private Map<String, Object> readIdTokenClaims(IdentityOAuthProvider provider, IdentityOAuthTokens tokens)
+    {
+        String issuer = provider.getOIDCIssuer();
+        String clientId = provider.getClientId();
+        if (tokens.getIdToken() != null && issuer != null && clientId != null) {
+            try {
+                return idTokenValidator.validate(tokens.getIdToken(), issuer, clientId, provider.getIdTokenNonce());
+            } catch (IdentityOAuthException e) {
+                // The identity served by the provider for the access token is authoritative.
+                log.warn("Could not use the ID token, requesting the identity: [{}].", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the measures of the OAuth dialogs, followed by the ones of the outbound requests prefixed by
+     * {@code http.}, the counts of ID tokens validated and rejected, and the state of the caches of users and
+     * cookies, of the avatar queue, of the reloads, of the token refresher and of the token wallet. The booleans are
+     * counted as 0 or 1 and the dates as milliseconds since the epoch.
+     *
+     * @return the measures, by provider, phase and measure, then by host and measure, then by cache, queue or task.
+     * @since 1.9.1
+     */
+    public Map<String, Long> getMetrics()
+    {
+        Map<String, Long> snapshot = metrics.getMetrics();
+        for (Map.Entry<String, Long> entry : httpClient.getMetrics().entrySet()) {
+            snapshot.put("http." + entry.getKey(), entry.getValue());
+        }
+        snapshot.put("idToken.validated", idTokenValidator.getValidatedCount());
+        snapshot.put("idToken.rejected", idTokenValidator.getRejectedCount());
+        snapshot.put("userCache.hits", ioUserProc.getUserCacheHits());
+        snapshot.put("userCache.misses", ioUserProc.getUserCacheMisses());
+        CookieAuthenticationPersistence cookiePersistence = cookiePersistenceProvider.get();
+        snapshot.put("cookieCache.hits", cookiePersistence.getCacheHits());
+        snapshot.put("cookieCache.misses", cookiePersistence.getCacheMisses());
+        snapshot.put("avatars.queueDepth", (long) avatarSynchronizer.getQueueDepth());
+        snapshot.put("avatars.synchronized", avatarSynchronizer.getSynchronizationCount());
+        snapshot.put("avatars.failures", avatarSynchronizer.getFailureCount());
+        snapshot.put("avatars.dropped", avatarSynchronizer.getDroppedCount());
+        IdentityOAuthReloadScheduler reloadScheduler = reloadSchedulerProvider.get();
+        snapshot.put("reloads.count", reloadScheduler.getReloadCount());
+        snapshot.put("reloads.pending", reloadScheduler.isReloadPending() ? 1L : 0L);
+        snapshot.put("reloads.lastFailed", reloadScheduler.isLastReloadFailed() ? 1L : 0L);
+        Date lastReloadDate = reloadScheduler.getLastReloadDate();
+        if (lastReloadDate != null) {
+            snapshot.put("reloads.lastDate", lastReloadDate.getTime());
+        }
+        IdentityOAuthTokenRefresher tokenRefresher = tokenRefresherProvider.get();
+        snapshot.put("tokenRefresher.refreshes", tokenRefresher.getRefreshCount());
+        snapshot.put("tokenRefresher.failures", tokenRefresher.getFailureCount());
+        snapshot.put("tokenWallet.size", (long) tokenWallet.getSize());
+        return snapshot;
+    }
+
     /**
      * Checks if an information is in the session for the provider.
      *
@@ -308,7 +412,9 @@ public class DefaultIdentityOAuthManager
     public boolean hasSessionIdentityInfo(String providerHint)
     {
         IdentityOAuthProvider prov = getActiveProvider(providerHint);
-        return sessionInfoProvider.get().getAuthorizationCode(providerHint) != null;
+        IdentityOAuthTokenWallet.WalletEntry entry =
+            tokenWallet.get(sessionInfoProvider.get().getWalletOwner(), providerHint);
+        return entry != null && entry.getAuthorizationCode() != null;
     }
 
     /**
@@ -321,7 +427,7 @@ public class DefaultIdentityOAuthManager
      */
     public IdentityOAuthProvider getProvider(String name)
     {
-        return providers.get(name);
+        return registry.getProvider(name);
     }
 
     /**
@@ -331,11 +437,13 @@ public class DefaultIdentityOAuthManager
      */
     public void requestCurrentToken(String providerHint)
     {
-        IdentityOAuthProvider provider = providers.get(providerHint);
+        IdentityOAuthProvider provider = registry.getProvider(providerHint);
         if (provider == null) {
             return;
         }
-        provider.receiveFreshToken(sessionInfoProvider.get().getToken(providerHint));
+        IdentityOAuthTokenWallet.WalletEntry entry =
+            tokenWallet.get(sessionInfoProvider.get().getWalletOwner(), providerHint);
+        provider.receiveFreshToken(entry != null ? entry.getToken() : null);
     }
 
     private XWiki getXWiki()
@@ -358,6 +466,28 @@ public class DefaultIdentityOAuthManager
 
     private void startIfNeedBe(boolean completeWithProviders)
     {
+        if (lifeCycleState == LifeCycle.RUNNING) {
+            return;
+        }
+        startSynchronized(completeWithProviders);
+    }
+
+    /**
+     * Replaces the registry. The images of both registries are served during the swap so that the pages rendered from
+     * either one find their images; those of the replaced registry only are dropped afterwards.
+     */
+    private void publish(ProviderRegistry newRegistry)
+    {
+        Map<String, ProviderLogo> logos = new HashMap<>(registry.getLogos());
+        logos.putAll(newRegistry.getLogos());
+        logoStore.setLogos(logos);
+        registry = newRegistry;
+        logoStore.setLogos(newRegistry.getLogos());
+    }
+
+    private synchronized void startSynchronized(boolean completeWithProviders)
+    {
+        // Another thread may have started the manager while this one was waiting.
         if (lifeCycleState == LifeCycle.RUNNING) {
             return;
         }
@@ -370,11 +500,12 @@ public class DefaultIdentityOAuthManager
         try {
             log.debug("Starting...");
             if (completeWithProviders) {
-                providerConfigs = managerInitiator.rebuildProviders(providers);
+                publish(managerInitiator.rebuildProviders(registry));
             }
             tryInitiatingAuthService();
+            tokenRefresherProvider.get().start();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Failed to start IdentityOAuth.", e);
             failed = true;
         }
 
@@ -408,7 +539,7 @@ public class DefaultIdentityOAuthManager
 
     private IdentityOAuthProvider getActiveProvider(String providerHint)
     {
-        IdentityOAuthProvider provider = providers.get(providerHint);
+        IdentityOAuthProvider provider = registry.getProvider(providerHint);
         if (provider == null) {
             throw new IdentityOAuthException("Provider \"" + provider + "\" not found.");
         }
@@ -0,0 +1,359 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.text.ParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthHttpClient;
+import com.xwiki.identityoauth.IdentityOAuthMetadataCache;
+
+/**
+ * Default implementation of {@link IdentityOAuthMetadataCache}. Each document is kept for the {@code max-age} of its
+ * {@code Cache-Control} header, bounded by the properties {@code xwiki.idoauth.metadata.minTtl} and
+ * {@code xwiki.idoauth.metadata.maxTtl} of xwiki.cfg (in seconds), or for {@code xwiki.idoauth.metadata.defaultTtl}
+ * without header. It is refreshed in the background shortly before it expires, with a conditional request when the
+ * server gave an entity-tag. Once expired, it is still served, while a refresh runs, for the
+ * {@code stale-while-revalidate} period of the header or {@code xwiki.idoauth.metadata.staleTtl}; if a refresh fails,
+ * the last document is kept whatever its age. The documents not requested for twice the maximum lifespan are
+ * dropped instead of being refreshed.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component
+@Singleton
+public class DefaultIdentityOAuthMetadataCache implements IdentityOAuthMetadataCache, Initializable, Disposable
+{
+    private static final String DISCOVERY_PATH = "/.well-known/openid-configuration";
+
+    private static final String PROPERTY_PREFIX = "xwiki.idoauth.metadata.";
+
+    private static final long DEFAULT_TTL = 3600;
+
+    private static final long DEFAULT_MIN_TTL = 60;
+
+    private static final long DEFAULT_MAX_TTL = 86400;
+
+    private static final long DEFAULT_STALE_TTL = 86400;
+
+    private static final long DEFAULT_UNKNOWN_KEY_INTERVAL = 60;
+
+    private static final String MAX_AGE = "max-age";
+
+    private static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private IdentityOAuthHttpClient httpClient;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private final Map<String, MetadataEntry<?>> entries = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    // The durations, in milliseconds.
+    private long defaultTtl;
+
+    private long minTtl;
+
+    private long maxTtl;
+
+    private long staleTtl;
+
+    private long unknownKeyInterval;
+
+    @Override
+    public void initialize()
+    {
+        this.defaultTtl = getDuration("defaultTtl", DEFAULT_TTL);
+        this.minTtl = getDuration("minTtl", DEFAULT_MIN_TTL);
+        this.maxTtl = Math.max(minTtl, getDuration("maxTtl", DEFAULT_MAX_TTL));
+        this.staleTtl = getDuration("staleTtl", DEFAULT_STALE_TTL);
+        this.unknownKeyInterval = getDuration("unknownKeyInterval", DEFAULT_UNKNOWN_KEY_INTERVAL);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IdentityOAuth metadata refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Map<String, Object> getProviderMetadata(String issuer) throws IdentityOAuthException
+    {
+        return get(getDiscoveryUri(issuer), JSONObjectUtils::parse);
+    }
+
+    @Override
+    public JWKSet getKeySet(String jwksUri) throws IdentityOAuthException
+    {
+        return get(jwksUri, JWKSet::parse);
+    }
+
+    @Override
+    public JWK getKey(String jwksUri, String keyId) throws IdentityOAuthException
+    {
+        JWK key = getKeySet(jwksUri).getKeyByKeyId(keyId);
+        @SuppressWarnings("unchecked")
+        MetadataEntry<JWKSet> entry = (MetadataEntry<JWKSet>) entries.get(jwksUri);
+        if (key != null || entry == null) {
+            return key;
+        }
+        // The provider may have rotated its keys. The refreshes are limited since the key identifiers come from the
+        // tokens presented, which anybody can forge.
+        synchronized (entry) {
+            key = entry.value.getKeyByKeyId(keyId);
+            long now = System.currentTimeMillis();
+            if (key == null && now - entry.lastForcedRefresh >= unknownKeyInterval) {
+                entry.lastForcedRefresh = now;
+                log.debug("Key [{}] not found in [{}], fetching the key set again.", keyId, jwksUri);
+                try {
+                    fetch(entry);
+                    key = entry.value.getKeyByKeyId(keyId);
+                } catch (IdentityOAuthException e) {
+                    log.warn("Could not fetch [{}] to find the key [{}]: [{}].", jwksUri, keyId, e.getMessage());
+                }
+            }
+        }
+        return key;
+    }
+
+    @Override
+    public void invalidate(String uri)
+    {
+        for (String key : new String[] { uri, getDiscoveryUri(uri) }) {
+            MetadataEntry<?> entry = entries.remove(key);
+            if (entry != null && entry.scheduledRefresh != null) {
+                entry.scheduledRefresh.cancel(false);
+            }
+        }
+    }
+
+    private <T> T get(String uri, MetadataParser<T> parser)
+    {
+        @SuppressWarnings("unchecked")
+        MetadataEntry<T> entry = (MetadataEntry<T>) entries.computeIfAbsent(uri, k -> new MetadataEntry<>(k, parser));
+        long now = System.currentTimeMillis();
+        entry.lastAccess = now;
+        T value = entry.value;
+        if (value != null && now < entry.freshUntil) {
+            return value;
+        }
+        if (value != null && now < entry.staleUntil) {
+            refreshInBackground(entry);
+            return value;
+        }
+        synchronized (entry) {
+            // Another thread may have fetched the document meanwhile.
+            if (entry.value != null && System.currentTimeMillis() < entry.freshUntil) {
+                return entry.value;
+            }
+            try {
+                fetch(entry);
+            } catch (IdentityOAuthException e) {
+                if (entry.value == null) {
+                    throw e;
+                }
+                log.warn("Could not fetch [{}], using the document fetched before: [{}].", uri,
+                    e.getMessage());
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * Fetches a document, under the lock of its entry, and schedules its next refresh.
+     */
+    private <T> void fetch(MetadataEntry<T> entry)
+    {
+        long now = System.currentTimeMillis();
+        HttpRequest.Builder request = httpClient.newRequest(URI.create(entry.uri)).header("Accept", "application/json");
+        if (entry.value != null && entry.etag != null) {
+            request.header("If-None-Match", entry.etag);
+        }
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                entry.value = entry.parser.parse(response.body());
+                entry.etag = response.headers().firstValue("ETag").orElse(null);
+            } else if (response.statusCode() != 304 || entry.value == null) {
+                throw new IdentityOAuthException(
+                    "Request to " + entry.uri + " answered with status " + response.statusCode());
+            }
+            setLifespan(entry, response.headers().firstValue("Cache-Control").orElse(""), now);
+            log.debug("Fetched [{}], fresh for [{}] ms.", entry.uri, entry.freshUntil - now);
+        } catch (IOException e) {
+            throw new IdentityOAuthException("Trouble at fetching " + entry.uri, e);
+        } catch (ParseException e) {
+            throw new IdentityOAuthException("Invalid document at " + entry.uri, e);
+        }
+        scheduleRefresh(entry, entry.freshUntil - now);
+    }
+
+    private void setLifespan(MetadataEntry<?> entry, String cacheControl, long now)
+    {
+        long ttl = defaultTtl;
+        long stale = staleTtl;
+        for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = directive.trim().split("=", 2);
+            long seconds = parts.length > 1 ? NumberUtils.toLong(StringUtils.strip(parts[1].trim(), "\""), -1) : -1;
+            if (MAX_AGE.equals(parts[0]) && seconds >= 0) {
+                ttl = TimeUnit.SECONDS.toMillis(seconds);
+            } else if (STALE_WHILE_REVALIDATE.equals(parts[0]) && seconds >= 0) {
+                stale = TimeUnit.SECONDS.toMillis(seconds);
+            } else if ("no-cache".equals(parts[0]) || "no-store".equals(parts[0])) {
+                ttl = 0;
+            }
+        }
+        ttl = Math.min(Math.max(ttl, minTtl), maxTtl);
+        entry.freshUntil = now + ttl;
+        entry.staleUntil = entry.freshUntil + stale;
+    }
+
+    private void scheduleRefresh(MetadataEntry<?> entry, long ttl)
+    {
+        if (entry.scheduledRefresh != null) {
+            entry.scheduledRefresh.cancel(false);
+        }
+        // Refresh a bit before the expiry, spreading the refreshes of the documents fetched together.
+        long delay = ttl - ttl / 10 + ThreadLocalRandom.current().nextLong(ttl / 20 + 1);
+        entry.scheduledRefresh = executor.schedule(() -> refresh(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshInBackground(MetadataEntry<?> entry)
+    {
+        if (entry.refreshing.compareAndSet(false, true)) {
+            executor.execute(() -> refresh(entry));
+        }
+    }
+
+    private void refresh(MetadataEntry<?> entry)
+    {
+        try {
+            if (System.currentTimeMillis() - entry.lastAccess > 2 * maxTtl) {
+                log.debug("Dropping [{}], which was not requested recently.", entry.uri);
+                entries.remove(entry.uri, entry);
+                return;
+            }
+            synchronized (entry) {
+                fetch(entry);
+            }
+        } catch (Exception e) {
+            log.warn("Could not refresh [{}], the document fetched before is kept: [{}].", entry.uri,
+                e.getMessage());
+            scheduleRefresh(entry, minTtl);
+        } finally {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private String getDiscoveryUri(String issuer)
+    {
+        return StringUtils.removeEnd(issuer, "/") + DISCOVERY_PATH;
+    }
+
+    private long getDuration(String name, long defaultSeconds)
+    {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, xwikiCfg.getProperty(PROPERTY_PREFIX + name, defaultSeconds)));
+    }
+
+    /**
+     * Reads a fetched document.
+     *
+     * @param <T> the type of the document.
+     */
+    private interface MetadataParser<T>
+    {
+        T parse(String body) throws ParseException;
+    }
+
+    /**
+     * A cached document, with its validity and refresh state.
+     *
+     * @param <T> the type of the document.
+     */
+    private static final class MetadataEntry<T>
+    {
+        private final String uri;
+
+        private final MetadataParser<T> parser;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile T value;
+
+        private volatile String etag;
+
+        private volatile long freshUntil;
+
+        private volatile long staleUntil;
+
+        private volatile long lastAccess;
+
+        private volatile long lastForcedRefresh;
+
+        private volatile ScheduledFuture<?> scheduledRefresh;
+
+        MetadataEntry(String uri, MetadataParser<T> parser)
+        {
+            this.uri = uri;
+            this.parser = parser;
+        }
+    }
+}
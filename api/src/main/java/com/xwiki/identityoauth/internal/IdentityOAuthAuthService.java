@@ -38,6 +38,7 @@ import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
 import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.identityoauth.IdentityOAuthManager;
 
 /**
  * An authenticator that can include a negotiation with remote Clouds services. This authenticator is created,
@@ -56,6 +57,9 @@ public class IdentityOAuthAuthService extends XWikiAuthServiceImpl
     @Inject
     private Provider<IdentityOAuthSessionInfo> sessionInfoProvider;
 
+    @Inject
+    private IdentityOAuthManager identityOAuthManager;
+
     @Inject
     private CookieAuthenticationPersistence cookiePersistance;
 
@@ -73,11 +77,11 @@ public class IdentityOAuthAuthService extends XWikiAuthServiceImpl
     {
         try {
             log.debug("checkAuth");
-            IdentityOAuthSessionInfo sessionInfo = sessionInfoProvider.get();
             if (context.getAction().equals("logout")) {
                 log.info("caught a logout request");
                 cookiePersistance.clear();
-                sessionInfo.clear(null);
+                // Forgets the tokens of the user as well, not only the reference to them held by the session.
+                identityOAuthManager.clearAllSessionInfos();
                 log.info("cleared cookie");
             }
             return super.checkAuth(context);
@@ -0,0 +1,350 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.LocalDocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+
+/**
+ * Fetches the avatars of the users and stores them as attachments of their profiles, in the background, so that the
+ * picture endpoints of the providers, which can be slow, do not add to the duration of the logins. The requests are
+ * queued in a bounded queue (property {@code xwiki.idoauth.avatarSync.queueSize} of xwiki.cfg) processed by a pool of
+ * threads (property {@code xwiki.idoauth.avatarSync.threads}); a user whose avatar is already queued is not queued
+ * again and the requests received when the queue is full are dropped, the avatar being refreshed at a next login.
+ * <p>
+ * The picture is requested with the date and entity-tag of the last fetch. The user document is loaded again once it
+ * is received, and only the avatar, its attachment and the synchronization state are changed, in a minor version.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthAvatarSynchronizer.class)
+@Singleton
+public class IdentityOAuthAvatarSynchronizer implements Initializable, Disposable, IdentityOAuthConstants
+{
+    private static final String THREADS_PROPERTY = "xwiki.idoauth.avatarSync.threads";
+
+    private static final String QUEUE_SIZE_PROPERTY = "xwiki.idoauth.avatarSync.queueSize";
+
+    private static final int DEFAULT_THREADS = 2;
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final String AVATAR_FETCH_DATE = "avatarFetchDate";
+
+    private static final String AVATAR_ETAG = "avatarETag";
+
+    private static final String AVATAR_DIGEST = "avatarDigest";
+
+    private final LocalDocumentReference userClassRef = new LocalDocumentReference(IDENTITY_SPACE, USER_CLASS);
+
+    private final LocalDocumentReference xwikiUserClassRef = new LocalDocumentReference(XWIKISPACE, "XWikiUsers");
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    @Inject
+    private IdentityOAuthMetrics metrics;
+
+    private ThreadPoolExecutor executor;
+
+    // the users whose avatar synchronization is queued or running
+    private final Set<DocumentReference> pendingUsers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong synchronizationCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    @Override
+    public void initialize()
+    {
+        int threads = Math.max(1, xwikiCfg.getProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+        int queueSize = Math.max(1, xwikiCfg.getProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+            new ArrayBlockingQueue<>(queueSize), runnable -> {
+                Thread thread = new Thread(runnable, "IdentityOAuth avatar synchronization "
+                    + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Requests the synchronization of the avatar of a user with the one of the provider. Returns immediately.
+     *
+     * @param userReference the reference of the user document, which is expected to be saved.
+     * @param id            the identity-description received at login.
+     * @param provider      the provider which delivered the identity.
+     * @param token         the currently valid token.
+     */
+    void scheduleSynchronization(DocumentReference userReference,
+        IdentityOAuthProvider.AbstractIdentityDescription id, IdentityOAuthProvider provider, String token)
+    {
+        if (!pendingUsers.add(userReference)) {
+            log.debug("Avatar synchronization of [{}] already pending.", userReference);
+            return;
+        }
+        try {
+            executor.execute(new AvatarRunnable(userReference, id, provider, token));
+        } catch (RejectedExecutionException e) {
+            pendingUsers.remove(userReference);
+            droppedCount.incrementAndGet();
+            log.debug("Avatar synchronization queue full, dropping the synchronization of [{}].", userReference);
+        }
+    }
+
+    /**
+     * @return the number of avatar synchronizations waiting to be run.
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of avatar synchronizations run, failed or not.
+     */
+    public long getSynchronizationCount()
+    {
+        return synchronizationCount.get();
+    }
+
+    /**
+     * @return the number of avatar synchronizations which ended with an error.
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    /**
+     * @return the number of avatar synchronizations dropped because the queue was full.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    private void synchronizeAvatar(DocumentReference userReference,
+        IdentityOAuthProvider.AbstractIdentityDescription id, IdentityOAuthProvider provider, String token)
+        throws Exception
+    {
+        XWikiContext context = contextProvider.get();
+        context.setWikiId(userReference.getWikiReference().getName());
+        // The cached instance is shared by the threads of the wiki, thus it is only read here.
+        XWikiDocument userDoc = context.getWiki().getDocument(userReference, context);
+        BaseObject userObj = userDoc.getXObject(xwikiUserClassRef);
+        if (userObj == null) {
+            log.debug("User [{}] not found for the avatar synchronization.", userReference);
+            return;
+        }
+        XWikiAttachment currentAvatar = getAvatarAttachment(userDoc, userObj);
+        if (currentAvatar != null && currentAvatar.getAuthorReference() != null) {
+            return;
+        }
+
+        BaseObject ioUserObj = userDoc.getXObject(userClassRef);
+        // The stored state is only trusted if the avatar it describes is still there.
+        boolean stateKnown = currentAvatar != null && ioUserObj != null;
+        Date lastFetchDate = stateKnown ? ioUserObj.getDateValue(AVATAR_FETCH_DATE) : null;
+        String storedETag = stateKnown ? StringUtils.defaultIfEmpty(ioUserObj.getStringValue(AVATAR_ETAG), null) : null;
+        String storedDigest = stateKnown ? ioUserObj.getStringValue(AVATAR_DIGEST) : null;
+
+        Pair<Triple<InputStream, String, String>, String> image =
+            provider.fetchUserImage(lastFetchDate, storedETag, id, token);
+        if (image == null || image.getLeft() == null || image.getLeft().getLeft() == null) {
+            log.debug("Profile photo not modified since [{}].", lastFetchDate);
+            return;
+        }
+        byte[] newAvatar;
+        try (InputStream newAvatarInputStream = image.getLeft().getLeft()) {
+            log.debug("Received profile photo [{}] from provider.", image.getLeft().getRight());
+            newAvatar = IOUtils.toByteArray(newAvatarInputStream);
+            if (currentAvatar != null && StringUtils.isEmpty(storedDigest)) {
+                // Avatar stored before digests were kept: its content is read once to avoid a useless new version.
+                storedDigest = DigestUtils.sha256Hex(currentAvatar.getContentInputStream(context));
+            }
+        } catch (Exception e) {
+            throw new IdentityOAuthException("Trouble at fetching user-image.", e);
+        }
+        String digest = DigestUtils.sha256Hex(newAvatar);
+        String eTag = image.getRight();
+        boolean avatarChanged = !digest.equals(storedDigest);
+        // The state is only updated when it differs so that an unchanged avatar does not cause a save.
+        if (avatarChanged || !stateKnown || !StringUtils.equals(storedETag, eTag)
+            || !digest.equals(ioUserObj.getStringValue(AVATAR_DIGEST)))
+        {
+            saveAvatar(userReference, avatarChanged ? getFileName(image.getLeft()) : null, newAvatar, digest, eTag);
+        }
+    }
+
+    /**
+     * Stores the avatar and its synchronization state on the latest version of the user document: the remote request
+     * can be long and the document may have been saved meanwhile, e.g. by a login, whose changes are kept.
+     *
+     * @param fileName the name of the new avatar attachment, or null if the avatar content is unchanged.
+     */
+    private void saveAvatar(DocumentReference userReference, String fileName, byte[] newAvatar, String digest,
+        String eTag) throws Exception
+    {
+        XWikiContext context = contextProvider.get();
+        XWikiDocument userDoc = context.getWiki().getDocument(userReference, context).clone();
+        BaseObject userObj = userDoc.getXObject(xwikiUserClassRef);
+        if (userObj == null) {
+            log.debug("User [{}] deleted during the avatar synchronization.", userReference);
+            return;
+        }
+        XWikiAttachment currentAvatar = getAvatarAttachment(userDoc, userObj);
+        if (currentAvatar != null && currentAvatar.getAuthorReference() != null) {
+            log.debug("User [{}] uploaded an avatar during the avatar synchronization.", userReference);
+            return;
+        }
+        if (fileName != null) {
+            userObj.set(AVATAR, fileName, context);
+            userDoc.setAttachment(fileName, new ByteArrayInputStream(newAvatar), context);
+            log.debug("Added new avatar [{}].", fileName);
+        }
+        BaseObject ioUserObj = userDoc.getXObject(userClassRef, true, context);
+        ioUserObj.setDateValue(AVATAR_FETCH_DATE, new Date());
+        ioUserObj.setStringValue(AVATAR_ETAG, StringUtils.defaultString(eTag));
+        ioUserObj.setStringValue(AVATAR_DIGEST, digest);
+        // Like at login, the document is saved without a context user so that the attachment has no author and is
+        // not taken for a picture uploaded by the user.
+        context.getWiki().saveDocument(userDoc, "IdentityOAuth avatar updated.", true, context);
+    }
+
+    private XWikiAttachment getAvatarAttachment(XWikiDocument userDoc, BaseObject userObj)
+    {
+        String fileName = userObj.getStringValue(AVATAR);
+        XWikiAttachment currentAvatar = null;
+        if (fileName != null && !fileName.isEmpty()) {
+            currentAvatar = userDoc.getAttachment(fileName);
+        }
+        return currentAvatar;
+    }
+
+    private String getFileName(Triple<InputStream, String, String> triple)
+    {
+        String fileName = triple.getRight();
+        String mediaType = triple.getMiddle();
+        if (fileName == null) {
+            if ("image/jpeg".equals(mediaType)) {
+                fileName = "image.jpeg";
+            } else if ("image/png".equals(mediaType)) {
+                fileName = "image.png";
+            } else {
+                throw new IllegalStateException("Unsupported avatar picture type \"" + mediaType + "\".");
+            }
+        }
+        return fileName;
+    }
+
+    /**
+     * Synchronizes the avatar of one user within an XWiki execution context.
+     */
+    private class AvatarRunnable extends AbstractXWikiRunnable
+    {
+        private final DocumentReference userReference;
+
+        private final IdentityOAuthProvider.AbstractIdentityDescription id;
+
+        private final IdentityOAuthProvider provider;
+
+        private final String token;
+
+        AvatarRunnable(DocumentReference userReference, IdentityOAuthProvider.AbstractIdentityDescription id,
+            IdentityOAuthProvider provider, String token)
+        {
+            this.userReference = userReference;
+            this.id = id;
+            this.provider = provider;
+            this.token = token;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            try {
+                metrics.measure(provider.getProviderHint(), IdentityOAuthMetrics.Phase.AVATAR_SYNC, () -> {
+                    synchronizeAvatar(userReference, id, provider, token);
+                    return null;
+                });
+            } catch (Exception e) {
+                failureCount.incrementAndGet();
+                log.warn("Trouble at synchronizing the avatar of [{}].", userReference, e);
+            } finally {
+                pendingUsers.remove(userReference);
+                synchronizationCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -19,20 +19,27 @@
  */
 package com.xwiki.identityoauth.internal;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentManager;
@@ -40,17 +47,26 @@ import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.AttachmentReferenceResolver;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
+import org.xwiki.rendering.parser.ParseException;
+import org.xwiki.rendering.syntax.Syntax;
 
+import com.xpn.xwiki.CoreConfiguration;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseObjectReference;
+import com.xpn.xwiki.objects.BaseProperty;
 import com.xwiki.identityoauth.IdentityOAuthException;
 import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.internal.resource.ProviderLogo;
+import com.xwiki.identityoauth.internal.resource.ProviderLogoStore;
 
 /**
  * The objects representing the configuration of the application as well as methods to connect to XWiki for the
@@ -80,6 +96,22 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
     private final LocalDocumentReference configurableClassRef =
         new LocalDocumentReference("XWiki", "ConfigurableClass");
 
+    private static final String CLASS_NAME = "className";
+
+    private static final String PROVIDER_OBJECTS_QUERY = "select doc.fullName, doc.syntaxId, obj.number, prop "
+        + "from XWikiDocument doc, BaseObject obj, BaseProperty prop "
+        + "where doc.translation = 0 and obj.name = doc.fullName and obj.className = :className "
+        + "and prop.id.id = obj.id order by doc.fullName, obj.number";
+
+    private static final String CONFIGURATION_OBJECTS_QUERY = "select obj.name, prop "
+        + "from BaseObject obj, BaseProperty prop "
+        + "where obj.name in (:pages) and obj.className <> :className and prop.id.id = obj.id "
+        + "order by obj.name, obj.className, obj.number";
+
+    private static final String ATTACHMENTS_QUERY = "select doc.fullName, attachment "
+        + "from XWikiDocument doc, XWikiAttachment attachment "
+        + "where doc.translation = 0 and doc.fullName in (:pages) and attachment.docId = doc.id";
+
     // environment
     @Inject
     private Logger log;
@@ -97,6 +129,10 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
     @Inject
     private DocumentReferenceResolver<String> documentResolver;
 
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
     @Inject
     private AttachmentReferenceResolver<String> attachmentResolver;
 
@@ -104,7 +140,16 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
     @Named("context")
     private ComponentManager componentManager;
 
-    private Set<DocumentReference> configDocReferences = new HashSet<>();
+    @Inject
+    private ProviderLogoStore logoStore;
+
+    @Inject
+    private CoreConfiguration coreConfiguration;
+
+    // Replaced at each load, and completed when configuration objects are added in between.
+    private volatile Set<DocumentReference> configDocReferences = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong configVersion = new AtomicLong();
 
     LocalDocumentReference getProviderConfigClassRef()
     {
@@ -116,54 +161,110 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
         return identityConfigClassRef;
     }
 
-    boolean hasIOConfigObject(XWikiDocument doc)
+    /**
+     * Tells, without loading the document, if a document holds IdentityOAuth configuration: a provider object, an
+     * IdentityOAuth configuration object or any object of a configuration page referenced by a provider.
+     *
+     * @param documentReference the reference of a saved or deleted document.
+     * @return true if the configuration needs to be reloaded when this document changes.
+     */
+    boolean isConfigDocument(DocumentReference documentReference)
     {
-        if (configDocReferences.contains(doc.getDocumentReference())) {
-            return true;
-        }
-        BaseObject providerConfigObj = doc.getXObject(getProviderConfigClassRef(), false, contextProvider.get());
-        BaseObject identityConfigObj = doc.getXObject(getIdentityConfigClassRef(), false, contextProvider.get());
+        return configDocReferences.contains(documentReference);
+    }
 
+    /**
+     * @param objectReference the reference of an added or removed object.
+     * @return true if the object is a provider object or an IdentityOAuth configuration object.
+     */
+    boolean isConfigObject(EntityReference objectReference)
+    {
+        LocalDocumentReference classRef =
+            new BaseObjectReference(objectReference).getXClassReference().getLocalDocumentReference();
         // Each configuration object, of the provider particularities or of the authorization specific properties,
         // can be kept on separate pages, depending on how the provider is implemented. Given this, the
         // administration section might perform a save on only one of these 2 objects.
-        return providerConfigObj != null || identityConfigObj != null;
+        return providerConfigClassRef.equals(classRef) || identityConfigClassRef.equals(classRef);
+    }
+
+    /**
+     * Adds a document to the documents that hold configuration, until the next reload.
+     *
+     * @param documentReference the document where a configuration object was added.
+     */
+    void addConfigDocument(DocumentReference documentReference)
+    {
+        configDocReferences.add(documentReference);
     }
 
     /**
-     * Fetches the provider-configurations from the XWIki objects.
+     * Fetches the provider-configurations from the XWIki objects. The provider objects, the configuration objects and
+     * the objects of the configuration pages are read with a fixed number of queries, whatever the number of
+     * providers.
      *
      * @return the config objects collected from the XWiki Objects; the list is mutable.
      */
     public List<ProviderConfig> loadProviderConfigs()
     {
         try {
-            List results = queryManager.createQuery(
-                    "from doc.object(IdentityOAuth.OAuthProviderClass) as obj",
-                    //"select from doc.object(IdentityOAuth.OAuthProviderClass) as obj",
-                    Query.XWQL).setWiki(contextProvider.get().getMainXWiki()).execute();
-            configDocReferences.clear();
+            WikiReference mainWiki = new WikiReference(contextProvider.get().getMainXWiki());
+            Set<DocumentReference> newConfigDocReferences = ConcurrentHashMap.newKeySet();
+            for (Object r : queryManager.createQuery("from doc.object(IdentityOAuth.IdentityOAuthConfigClass) as obj",
+                Query.XWQL).setWiki(mainWiki.getName()).execute())
+            {
+                newConfigDocReferences.add(documentResolver.resolve((String) r, mainWiki));
+            }
+
+            // The properties of the first provider object of each page, with the syntax of the page.
+            Map<String, Map<String, String>> providerObjects = new LinkedHashMap<>();
+            Map<String, String> syntaxes = new HashMap<>();
+            Map<String, Integer> objectNumbers = new HashMap<>();
+            List<Object[]> rows = queryManager.createQuery(PROVIDER_OBJECTS_QUERY, Query.HQL)
+                .setWiki(mainWiki.getName())
+                .bindValue(CLASS_NAME, localSerializer.serialize(providerConfigClassRef)).execute();
+            for (Object[] row : rows) {
+                String docName = (String) row[0];
+                Integer number = objectNumbers.putIfAbsent(docName, (Integer) row[2]);
+                if (number == null || number.equals(row[2])) {
+                    syntaxes.put(docName, (String) row[1]);
+                    BaseProperty<?> property = (BaseProperty<?>) row[3];
+                    providerObjects.computeIfAbsent(docName, k -> new HashMap<>())
+                        .put(property.getName(), getStringValue(property));
+                }
+            }
+            log.info("Found providers: " + providerObjects.keySet());
+
+            long version = configVersion.incrementAndGet();
             List<ProviderConfig> configs = new LinkedList<>();
-            log.info("Found providers: " + results);
-            for (Object r : results) {
-                XWikiDocument doc = contextProvider.get().getWiki().getDocument((String) r, contextProvider.get());
-                BaseObject o = doc.getXObject(getProviderConfigClassRef(), false, contextProvider.get());
-                log.info("Provider " + o.getStringValue(PROVIDER_HINT));
-                if (o.getIntValue(ACTIVE) != 0) {
+            Map<ProviderConfig, String> configPages = new HashMap<>();
+            for (Map.Entry<String, Map<String, String>> providerObject : providerObjects.entrySet()) {
+                newConfigDocReferences.add(documentResolver.resolve(providerObject.getKey(), mainWiki));
+                Map<String, String> o = providerObject.getValue();
+                log.info("Provider " + o.get(PROVIDER_HINT));
+                if (NumberUtils.toInt(o.get(ACTIVE), 0) != 0) {
                     log.info("... active");
                     ProviderConfig c = new ProviderConfig();
-                    c.setName(o.getStringValue(PROVIDER_HINT));
-                    c.setLoginCode(o.getStringValue("loginTemplate"));
-                    c.setLoginCodeSyntax(doc.getSyntax());
-                    c.setConfigPage("configPage");
-                    c.setOrderHint(o.getIntValue("orderHint"));
-                    DocumentReference configDocRef = documentResolver.resolve(
-                            o.getStringValue("configurationObjectsPage"));
-                    configDocReferences.add(configDocRef);
-                    c.setConfig(readConfigurationMap(configDocRef));
+                    c.setName(o.get(PROVIDER_HINT));
+                    c.setLoginCode(StringUtils.defaultString(o.get("loginTemplate")));
+                    c.setLoginCodeSyntax(parseSyntax(syntaxes.get(providerObject.getKey()), providerObject.getKey()));
+                    c.setOrderHint(NumberUtils.toInt(o.get("orderHint"), 0));
+                    c.setVersion(version);
+                    DocumentReference configDocRef =
+                        documentResolver.resolve(StringUtils.defaultString(o.get("configurationObjectsPage")),
+                            mainWiki);
+                    newConfigDocReferences.add(configDocRef);
+                    c.setConfigPage(localSerializer.serialize(configDocRef));
+                    configPages.put(c, c.getConfigPage());
                     configs.add(c);
                 }
             }
+
+            Map<String, Map<String, String>> configurationMaps =
+                readConfigurationMaps(new HashSet<>(configPages.values()), mainWiki);
+            for (ProviderConfig c : configs) {
+                c.setConfig(configurationMaps.getOrDefault(configPages.get(c), new HashMap<>()));
+            }
+            configDocReferences = newConfigDocReferences;
             return configs;
         } catch (Exception e) {
             String msg = "Trouble at loading IdentityOAuthProvider-configurations.";
@@ -172,46 +273,114 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
         }
     }
 
-    private Map<String, String> readConfigurationMap(DocumentReference configurationPage)
+    /**
+     * Reads the syntax of a provider page, falling back to the default syntax of the documents so that a page with a
+     * missing or malformed syntax does not prevent the other providers from loading.
+     */
+    private Syntax parseSyntax(String syntaxId, String docName)
     {
-        try {
-            Map<String, String> map = new HashMap<>();
-            XWikiContext context = contextProvider.get();
-            XWikiDocument doc = context.getWiki().getDocument(configurationPage, context);
-            for (List<BaseObject> l : doc.getXObjects().values()) {
-                for (BaseObject obj : l) {
-                    // We skip the XWiki configurable class, which does not contain provider configurations, but is
-                    // usually present on the provider configuration page.
-                    if (obj.getXClass(context).getDocumentReference().getLocalDocumentReference()
-                        .equals(configurableClassRef))
-                    {
-                        continue;
-                    }
-                    for (String name : obj.getPropertyNames()) {
-                        String value = obj.getStringValue(name);
-                        if ("redirectUrl".equals(name)) {
-                            if (value == null || value.trim().length() == 0) {
-                                value = getLoginPageUrl();
-                            }
-                        }
-                        map.put(name, value);
+        if (StringUtils.isNotBlank(syntaxId)) {
+            try {
+                return Syntax.valueOf(syntaxId);
+            } catch (ParseException e) {
+                log.warn("Unknown syntax [{}] of [{}], using the default syntax.", syntaxId, docName);
+            }
+        }
+        return coreConfiguration.getDefaultDocumentSyntax();
+    }
+
+    private Map<String, Map<String, String>> readConfigurationMaps(Set<String> configurationPages,
+        WikiReference mainWiki) throws QueryException
+    {
+        Map<String, Map<String, String>> maps = new HashMap<>();
+        if (configurationPages.isEmpty()) {
+            return maps;
+        }
+        // We skip the XWiki configurable class, which does not contain provider configurations, but is usually
+        // present on the provider configuration page.
+        List<Object[]> rows = queryManager.createQuery(CONFIGURATION_OBJECTS_QUERY, Query.HQL)
+            .setWiki(mainWiki.getName())
+            .bindValue("pages", new ArrayList<>(configurationPages))
+            .bindValue(CLASS_NAME, localSerializer.serialize(configurableClassRef)).execute();
+        String loginPageUrl = null;
+        for (Object[] row : rows) {
+            BaseProperty<?> property = (BaseProperty<?>) row[1];
+            String name = property.getName();
+            String value = getStringValue(property);
+            if ("redirectUrl".equals(name)) {
+                if (value == null || value.trim().length() == 0) {
+                    if (loginPageUrl == null) {
+                        loginPageUrl = getLoginPageUrl();
                     }
+                    value = loginPageUrl;
                 }
             }
-            return map;
-        } catch (XWikiException e) {
-            throw new IdentityOAuthException("Trouble at reading configuration.", e);
+            maps.computeIfAbsent((String) row[0], k -> new HashMap<>()).put(name, value);
+        }
+        return maps;
+    }
+
+    /**
+     * Reads a property of an object as {@link com.xpn.xwiki.objects.BaseObject#getStringValue(String)} does, so that
+     * the providers receive the same strings as when the objects were loaded (e.g. {@code [a, b]} for a list).
+     *
+     * @param property the property read by a query.
+     * @return the string value of the property, or the empty string if it has no value.
+     */
+    private static String getStringValue(BaseProperty<?> property)
+    {
+        Object value = property.getValue();
+        return value == null ? "" : value.toString();
+    }
+
+    /**
+     * Reads the metadata (not the content) of the attachments referenced by the image markers of the login-codes.
+     *
+     * @param configs the provider configurations.
+     * @return the attachments found, indexed by the references as written in the login-codes.
+     */
+    private Map<String, XWikiAttachment> loadLogoAttachments(List<ProviderConfig> configs) throws QueryException
+    {
+        Map<String, XWikiAttachment> attachments = new HashMap<>();
+        WikiReference mainWiki = new WikiReference(contextProvider.get().getMainXWiki());
+        Map<String, AttachmentReference> references = new HashMap<>();
+        for (ProviderConfig config : configs) {
+            for (String attachmentRef : getLogoReferences(config.getLoginCode())) {
+                references.put(attachmentRef, attachmentResolver.resolve(attachmentRef, mainWiki));
+            }
+        }
+        if (references.isEmpty()) {
+            return attachments;
+        }
+        Set<String> pages = new HashSet<>();
+        for (AttachmentReference reference : references.values()) {
+            pages.add(localSerializer.serialize(reference.getDocumentReference()));
+        }
+        List<Object[]> rows = queryManager.createQuery(ATTACHMENTS_QUERY, Query.HQL).setWiki(mainWiki.getName())
+            .bindValue("pages", new ArrayList<>(pages)).execute();
+        Map<AttachmentReference, XWikiAttachment> found = new HashMap<>();
+        for (Object[] row : rows) {
+            XWikiAttachment attachment = (XWikiAttachment) row[1];
+            found.put(new AttachmentReference(attachment.getFilename(),
+                documentResolver.resolve((String) row[0], mainWiki)), attachment);
         }
+        for (Map.Entry<String, AttachmentReference> reference : references.entrySet()) {
+            XWikiAttachment attachment = found.get(reference.getValue());
+            if (attachment != null) {
+                attachments.put(reference.getKey(), attachment);
+            }
+        }
+        return attachments;
     }
 
     /**
-     * Extracts the content of an attachment and encodes it as a data-url (using media-type and base64). This
-     * implementations returns "file-size-is-too-large" if bigger than 2 Mb.
+     * Extracts the content of an attachment so that it can be served by the {@link ProviderLogoStore}. This
+     * implementations returns null if the attachment is not found or bigger than 2 Mb.
      *
      * @param attachmentRef the reference to the attachment e.g. Space/Page/filename.png
-     * @return a data-url suitable to embed within a web-page.
+     * @return the image, identified by the hash of its content, or null.
      */
-    String createDataUrl(String attachmentRef)
+    ProviderLogo createLogo(String attachmentRef)
     {
         try {
             XWikiContext context = contextProvider.get();
@@ -219,18 +388,19 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
             XWikiDocument doc = context.getWiki().getDocument(ref.getParent(), context);
             XWikiAttachment attachment = doc.getAttachment(ref.getName());
             if (attachment == null) {
-                return "attachment " + attachmentRef + " not found";
+                log.warn("Attachment [{}] not found.", attachmentRef);
+                return null;
             }
             if (attachment.getLongSize() > 2 * 1024 * 1024) {
-                return "file-size-is-too-large";
+                log.warn("Attachment [{}] is too large to be served as a provider image.", attachmentRef);
+                return null;
             }
 
-            return "data:" + attachment.getMimeType() + ";base64,"
-                    + new Base64(2 * 1024 * 1024 * 2)
-                    .encodeAsString(attachment.getContent(context));
+            byte[] content = attachment.getContent(context);
+            return new ProviderLogo(DigestUtils.sha256Hex(content), attachment.getMimeType(), content);
         } catch (Exception e) {
-            log.warn("Issue at creating data-url", e);
-            throw new IdentityOAuthException("Trouble at creating data-url", e);
+            log.warn("Issue at loading provider image", e);
+            throw new IdentityOAuthException("Trouble at loading provider image", e);
         }
     }
 
@@ -256,9 +426,27 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
         return loginUrl;
     }
 
-    List<ProviderConfig> loadAndRebuildProviders()
+    /**
+     * Loads the provider configurations and initializes the providers. The providers whose configuration, login-code
+     * and referenced images did not change since the previous load are not initialized again: they are carried over
+     * with their prepared login-code.
+     *
+     * @param previousConfigs the configurations of the previous load.
+     * @return the configurations, sorted by order hint.
+     */
+    List<ProviderConfig> loadAndRebuildProviders(List<ProviderConfig> previousConfigs)
     {
+        Map<String, ProviderConfig> previousByName = new HashMap<>();
+        for (ProviderConfig previous : previousConfigs) {
+            previousByName.put(previous.getName(), previous);
+        }
         List<ProviderConfig> providerConfigs = this.loadProviderConfigs();
+        Map<String, XWikiAttachment> logoAttachments;
+        try {
+            logoAttachments = loadLogoAttachments(providerConfigs);
+        } catch (QueryException e) {
+            throw new IdentityOAuthException("Trouble at loading the images of the providers.", e);
+        }
         providerConfigs.sort(new Comparator<ProviderConfig>()
         {
             @Override
@@ -272,27 +460,100 @@ public class IdentityOAuthConfigTools implements IdentityOAuthConstants
         for (ProviderConfig config : providerConfigs) {
             try {
                 IdentityOAuthProvider pr = componentManager.getInstance(IdentityOAuthProvider.class, config.getName());
-                pr.setProviderHint(config.getName());
-                pr.setConfigPage(config.getConfigPage());
-                pr.initialize(config.getConfig());
-                config.setProvider(pr);
-                String loginCode = config.getLoginCode();
-                if (loginCode.contains(BASE64_MARKER)) {
-                    int cursor = -1;
-                    while ((cursor = loginCode.indexOf(BASE64_MARKER, cursor + 1)) > -1) {
-                        int startOfPictName = cursor + BASE64_MARKER.length();
-                        int endOfPictName = loginCode.indexOf("--", startOfPictName);
-                        loginCode = loginCode.substring(0, cursor)
-                                + this.createDataUrl(loginCode.substring(startOfPictName, endOfPictName))
-                                + loginCode.substring(endOfPictName + 2);
-                    }
+                config.setFingerprint(computeFingerprint(config, logoAttachments));
+                ProviderConfig previous = previousByName.get(config.getName());
+                // A new instance means the provider component was registered again (e.g. after an extension update).
+                if (previous != null && previous.getProvider() == pr
+                    && config.getFingerprint().equals(previous.getFingerprint()))
+                {
+                    log.debug("Provider [{}] is unchanged.", config.getName());
+                    config.setVersion(previous.getVersion());
+                    config.setLogos(previous.getLogos());
+                    config.setPreparedLoginCode(previous.getPreparedLoginCode());
+                } else {
+                    pr.setProviderHint(config.getName());
+                    pr.setConfigPage(config.getConfigPage());
+                    pr.initialize(config.getConfig());
+                    config.setPreparedLoginCode(
+                        prepareLoginCode(config).replaceAll("-PROVIDER-", config.getName()));
                 }
-                config.setPreparedLoginCode(loginCode.replaceAll("-PROVIDER-", config.getName()));
+                config.setProvider(pr);
             } catch (Exception e) {
                 log.warn("Trouble at creating provider \"" + config.getName() + "\":", e);
             }
         }
+        // The images are served once the registry built from these configurations is published.
         return providerConfigs;
     }
-}
 
+    /**
+     * Computes a digest of everything a provider is built from: its configuration page and map, its login-code and
+     * the versions of the images this login-code references.
+     *
+     * @param config the freshly loaded configuration.
+     * @param logoAttachments the attachments of the configuration pages, by reference.
+     * @return the hexadecimal SHA-256 digest.
+     */
+    String computeFingerprint(ProviderConfig config, Map<String, XWikiAttachment> logoAttachments)
+    {
+        StringBuilder input = new StringBuilder();
+        input.append(config.getConfigPage()).append('\n');
+        input.append(config.getLoginCodeSyntax()).append('\n');
+        input.append(config.getLoginCode()).append('\n');
+        for (Map.Entry<String, String> entry : new TreeMap<>(config.getConfig()).entrySet()) {
+            input.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        for (String attachmentRef : getLogoReferences(config.getLoginCode())) {
+            input.append(attachmentRef);
+            XWikiAttachment attachment = logoAttachments.get(attachmentRef);
+            if (attachment != null) {
+                input.append('@').append(attachment.getVersion()).append('/').append(attachment.getLongSize())
+                    .append('/').append(attachment.getDate().getTime());
+            }
+            input.append('\n');
+        }
+        return DigestUtils.sha256Hex(input.toString());
+    }
+
+    /**
+     * @param loginCode the login-code as configured.
+     * @return the references of the attachments marked with {@link #BASE64_MARKER} in the login-code.
+     */
+    private List<String> getLogoReferences(String loginCode)
+    {
+        List<String> references = new ArrayList<>();
+        int cursor = -1;
+        while ((cursor = loginCode.indexOf(BASE64_MARKER, cursor + 1)) > -1) {
+            int startOfPictName = cursor + BASE64_MARKER.length();
+            int endOfPictName = loginCode.indexOf("--", startOfPictName);
+            references.add(loginCode.substring(startOfPictName, endOfPictName));
+        }
+        return references;
+    }
+
+    /**
+     * Replaces the image markers of the login-code by the URL at which the {@link ProviderLogoStore} serves them and
+     * records the images in the configuration.
+     *
+     * @param config the configuration of the provider.
+     * @return the login-code with the image markers replaced.
+     */
+    private String prepareLoginCode(ProviderConfig config)
+    {
+        String preparedCode = config.getLoginCode();
+        List<ProviderLogo> logos = new ArrayList<>();
+        for (String attachmentRef : getLogoReferences(config.getLoginCode())) {
+            ProviderLogo logo = createLogo(attachmentRef);
+            String url;
+            if (logo != null) {
+                logos.add(logo);
+                url = logoStore.getURL(logo);
+            } else {
+                url = "attachment " + attachmentRef + " not available";
+            }
+            preparedCode = preparedCode.replace(BASE64_MARKER + attachmentRef + "--", url);
+        }
+        config.setLogos(logos);
+        return preparedCode;
+    }
+}
@@ -39,6 +39,10 @@ public interface IdentityOAuthConstants
      * IdentityOAuth.
      */
     String IDENTITY_SPACE = "IdentityOAuth";
+    /**
+     * IdentityOAuthUserClass: the class of the objects holding the synchronization state of the users.
+     */
+    String USER_CLASS = "IdentityOAuthUserClass";
     /**
      * view.
      */
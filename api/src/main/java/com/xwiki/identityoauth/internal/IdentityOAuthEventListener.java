@@ -35,6 +35,9 @@ import org.xwiki.observation.event.Event;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectEvent;
 import com.xwiki.identityoauth.IdentityOAuthManager;
 import com.xwiki.identityoauth.IdentityOAuthProvider;
 
@@ -42,7 +45,14 @@ import com.xwiki.identityoauth.IdentityOAuthProvider;
  * Initialize identity oauth configurations when the application is started. Reload saved configurations when
  * identity oauth configuration objects are modified. Reload also when IdentityOAuthProvider components are registered
  * since these are re-initialized when the classloader is recreated (e.g. after a jar extension uninstall or update
- * event).
+ * event). Except at startup, the reloads are delegated to the {@link IdentityOAuthReloadScheduler}.
+ * <p>
+ * Every document update of the farm reaches this listener: the documents holding configuration are recognized by a
+ * lookup in the index kept by {@link IdentityOAuthConfigTools}, without loading their objects. The index is completed
+ * when configuration objects are added.
+ * <p>
+ * The deletion of a user document, which a rename also produces, removes its identity from the identity-to-user cache
+ * of {@link IdentityOAuthUserTools}.
  *
  * @version $Id$
  * @since 1.0
@@ -60,6 +70,12 @@ public class IdentityOAuthEventListener extends AbstractEventListener
     @Inject
     private IdentityOAuthManager identityOAuthManager;
 
+    @Inject
+    private IdentityOAuthReloadScheduler reloadScheduler;
+
+    @Inject
+    private IdentityOAuthUserTools ioUserTools;
+
     @Inject
     private Logger log;
 
@@ -67,11 +83,12 @@ public class IdentityOAuthEventListener extends AbstractEventListener
     private Provider<XWikiContext> contextProvider;
 
     /**
-     * Creates an event-listener filtering for ApplicationReadyEvent and DocumentUpdatedEvent.
+     * Creates an event-listener filtering for ApplicationReadyEvent, document and object events.
      */
     public IdentityOAuthEventListener()
     {
         super(NAME, new ApplicationReadyEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent(),
+            new XObjectAddedEvent(), new XObjectDeletedEvent(),
             new ComponentDescriptorAddedEvent(IdentityOAuthProvider.class));
     }
 
@@ -89,23 +106,42 @@ public class IdentityOAuthEventListener extends AbstractEventListener
         if (log.isDebugEnabled()) {
             log.debug("Event! " + event + " from " + source);
         }
+        if (event instanceof ApplicationReadyEvent) {
+            log.info("Reloading IdentityOAuth providers! ");
+            identityOAuthManager.reloadConfig();
+            return;
+        }
         boolean reloadConfig = false;
         // Since ComponentDescriptorAddedEvent is fired also before the application is ready, the reloading is not
         // triggered for this event at XWiki start time.
-        if (event instanceof ApplicationReadyEvent || (event instanceof ComponentDescriptorAddedEvent
-            && this.contextProvider.get() != null)) {
+        if (event instanceof ComponentDescriptorAddedEvent && this.contextProvider.get() != null) {
             reloadConfig = true;
         }
         if (event instanceof DocumentUpdatedEvent || event instanceof DocumentDeletedEvent) {
             XWikiDocument document = (XWikiDocument) source;
-            if (document != null && ioXWikiObjects.hasIOConfigObject(document)) {
+            if (document != null && ioXWikiObjects.isConfigDocument(document.getDocumentReference())) {
                 reloadConfig = true;
             }
+            if (event instanceof DocumentDeletedEvent && document != null && isUserDocument(document)) {
+                ioUserTools.invalidateUser(document.getOriginalDocument());
+            }
+        }
+        if (event instanceof XObjectEvent && ioXWikiObjects.isConfigObject(((XObjectEvent) event).getReference())) {
+            // The document event may have been received before this one, thus the reload is requested here too.
+            ioXWikiObjects.addConfigDocument(((XWikiDocument) source).getDocumentReference());
+            reloadConfig = true;
         }
 
         if (reloadConfig) {
-            log.info("Reloading IdentityOAuth providers! ");
-            identityOAuthManager.reloadConfig();
+            reloadScheduler.scheduleReload();
         }
     }
+
+    private boolean isUserDocument(XWikiDocument document)
+    {
+        // The deleted document is empty, its content before the deletion is held by the original document.
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        return originalDocument != null
+            && originalDocument.getXObject(ioUserTools.getXWikiUserClassRef().getLocalDocumentReference()) != null;
+    }
 }
@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.security.Key;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jwk.AsymmetricJWK;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
+import com.nimbusds.jwt.SignedJWT;
+import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthMetadataCache;
+
+/**
+ * Validates the ID tokens received with the access tokens, so that the identity can be read from their claims instead
+ * of being requested from the userinfo endpoint. The signature is checked with the keys published by the issuer
+ * (read through the {@link IdentityOAuthMetadataCache}), then the issuer, the audience and the validity period, with
+ * a tolerance for the clock differences (property {@code xwiki.idoauth.idToken.clockSkew} of xwiki.cfg, in seconds).
+ * Only the asymmetric signatures are accepted: a token signed with the client secret, or not signed, is rejected.
+ * <p>
+ * The {@code nonce} claim is checked only when the provider gives the nonce it sent with the authorization request.
+ * Otherwise it is not required: in the authorization code flow the ID token is received directly from the token
+ * endpoint of the issuer over TLS, in exchange for a single-use code, so that it cannot be replayed through the
+ * browser, and the OpenID Connect specification makes the nonce optional for this flow.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthIdTokenValidator.class)
+@Singleton
+public class IdentityOAuthIdTokenValidator implements Initializable
+{
+    private static final String CLOCK_SKEW_PROPERTY = "xwiki.idoauth.idToken.clockSkew";
+
+    private static final long DEFAULT_CLOCK_SKEW = 60;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private IdentityOAuthMetadataCache metadataCache;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private final DefaultJWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+
+    private final AtomicLong validatedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private long clockSkew;
+
+    @Override
+    public void initialize()
+    {
+        this.clockSkew = TimeUnit.SECONDS.toMillis(Math.max(0, xwikiCfg.getProperty(CLOCK_SKEW_PROPERTY,
+            DEFAULT_CLOCK_SKEW)));
+    }
+
+    /**
+     * Validates an ID token.
+     *
+     * @param idToken  the ID token as received in the token response.
+     * @param issuer   the expected issuer.
+     * @param clientId the client id of the wiki, expected as audience.
+     * @param nonce    the nonce sent with the authorization request, expected in the token, or null if none was sent.
+     * @return the claims of the token.
+     * @throws IdentityOAuthException if the token is not valid or the keys of the issuer cannot be read.
+     */
+    Map<String, Object> validate(String idToken, String issuer, String clientId, String nonce)
+        throws IdentityOAuthException
+    {
+        try {
+            JWT jwt = JWTParser.parse(idToken);
+            if (!(jwt instanceof SignedJWT)) {
+                throw new IdentityOAuthException("The ID token is not signed.");
+            }
+            SignedJWT signedJWT = (SignedJWT) jwt;
+            verifySignature(signedJWT, issuer);
+            JWTClaimsSet claims = signedJWT.getJWTClaimsSet();
+            verifyClaims(claims, issuer, clientId, nonce);
+            validatedCount.incrementAndGet();
+            return claims.getClaims();
+        } catch (ParseException | JOSEException e) {
+            rejectedCount.incrementAndGet();
+            throw new IdentityOAuthException("Invalid ID token.", e);
+        } catch (IdentityOAuthException e) {
+            rejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of ID tokens accepted.
+     */
+    long getValidatedCount()
+    {
+        return validatedCount.get();
+    }
+
+    /**
+     * @return the number of ID tokens rejected.
+     */
+    long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    private void verifySignature(SignedJWT jwt, String issuer) throws JOSEException
+    {
+        JWSHeader header = jwt.getHeader();
+        if (JWSAlgorithm.Family.HMAC_SHA.contains(header.getAlgorithm())) {
+            throw new IdentityOAuthException("ID tokens signed with " + header.getAlgorithm() + " are not supported.");
+        }
+        Object jwksUri = metadataCache.getProviderMetadata(issuer).get("jwks_uri");
+        if (!(jwksUri instanceof String)) {
+            throw new IdentityOAuthException("The discovery document of " + issuer + " has no jwks_uri.");
+        }
+        JWK jwk;
+        if (header.getKeyID() != null) {
+            jwk = metadataCache.getKey((String) jwksUri, header.getKeyID());
+        } else {
+            // Without key id, the key set must be made of a single key.
+            List<JWK> keys = metadataCache.getKeySet((String) jwksUri).getKeys();
+            jwk = keys.size() == 1 ? keys.get(0) : null;
+        }
+        if (!(jwk instanceof AsymmetricJWK)) {
+            throw new IdentityOAuthException("No key of " + issuer + " matches the ID token.");
+        }
+        Key key = ((AsymmetricJWK) jwk).toPublicKey();
+        if (!jwt.verify(verifierFactory.createJWSVerifier(header, key))) {
+            throw new IdentityOAuthException("The signature of the ID token is not valid.");
+        }
+    }
+
+    private void verifyClaims(JWTClaimsSet claims, String issuer, String clientId, String nonce)
+        throws ParseException
+    {
+        if (!issuer.equals(claims.getIssuer())) {
+            throw new IdentityOAuthException("The ID token was issued by " + claims.getIssuer() + ".");
+        }
+        List<String> audience = claims.getAudience();
+        if (!audience.contains(clientId)) {
+            throw new IdentityOAuthException("The ID token is not meant for this wiki.");
+        }
+        String authorizedParty = claims.getStringClaim("azp");
+        if (audience.size() > 1 && !clientId.equals(authorizedParty)) {
+            throw new IdentityOAuthException("The ID token was not issued to this wiki.");
+        }
+        long now = System.currentTimeMillis();
+        Date expiry = claims.getExpirationTime();
+        if (expiry == null || expiry.getTime() + clockSkew < now) {
+            throw new IdentityOAuthException("The ID token is expired.");
+        }
+        Date notBefore = claims.getNotBeforeTime();
+        Date issuedAt = claims.getIssueTime();
+        if ((notBefore != null && notBefore.getTime() - clockSkew > now)
+            || (issuedAt != null && issuedAt.getTime() - clockSkew > now))
+        {
+            throw new IdentityOAuthException("The ID token is not valid yet.");
+        }
+        if (nonce != null && !nonce.equals(claims.getStringClaim("nonce"))) {
+            throw new IdentityOAuthException("The ID token does not answer the authorization request.");
+        }
+        log.debug("ID token of [{}] accepted.", claims.getSubject());
+    }
+}
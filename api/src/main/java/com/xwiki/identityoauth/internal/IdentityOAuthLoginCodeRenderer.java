@@ -0,0 +1,167 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.rendering.converter.Converter;
+import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Renders the login-codes of the providers and keeps the results so that the login page, which is the most viewed
+ * page for anonymous users, does not run a rendering pipeline per provider at each view. The rendered codes are kept
+ * in the {@link ProviderRegistry} per provider name, configuration version and locale; they are dropped when the
+ * configuration is reloaded or when the {@link com.xwiki.identityoauth.IdentityOAuthProvider#isReady()} state of the
+ * provider changes.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthLoginCodeRenderer.class)
+@Singleton
+public class IdentityOAuthLoginCodeRenderer
+{
+    @Inject
+    private Logger log;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Converter converter;
+
+    /**
+     * Renders the login-codes of a registry in the locale of the current context, if any. Called when the providers
+     * are rebuilt, before the registry is published.
+     *
+     * @param registry the freshly built registry.
+     */
+    void prepare(ProviderRegistry registry)
+    {
+        XWikiContext context = contextProvider.get();
+        if (context == null) {
+            return;
+        }
+        Locale locale = getLocale(context);
+        for (ProviderConfig config : registry.getProviderConfigs()) {
+            if (config.getProvider() == null) {
+                continue;
+            }
+            try {
+                getRenderedLoginCode(registry, config, locale);
+            } catch (Exception e) {
+                // The rendering will be attempted again at the next view of the login page.
+                log.debug("Could not pre-render the login code of [{}].", config.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Provides the rendered login-codes of the providers of a registry in the locale of the current context.
+     *
+     * @param registry the registry holding the configurations of the active providers.
+     * @return a list of rendered code in XHTML.
+     */
+    List<String> render(ProviderRegistry registry)
+    {
+        Locale locale = getLocale(contextProvider.get());
+        List<ProviderConfig> providerConfigs = registry.getProviderConfigs();
+        List<String> result = new ArrayList<>(providerConfigs.size());
+        for (ProviderConfig config : providerConfigs) {
+            try {
+                result.add(getRenderedLoginCode(registry, config, locale));
+            } catch (Exception e) {
+                result.add("BROKEN RENDERING " + config.getName());
+                log.warn("Can't render (BROKEN RENDERING " + config.getName() + "): ", e);
+            }
+        }
+        return result;
+    }
+
+    private String getRenderedLoginCode(ProviderRegistry registry, ProviderConfig config, Locale locale)
+        throws Exception
+    {
+        Map<String, RenderedLoginCodes> renderedLoginCodes = registry.getRenderedLoginCodes();
+        boolean ready = config.getProvider().isReady();
+        RenderedLoginCodes codes = renderedLoginCodes.get(config.getName());
+        if (codes == null || codes.version != config.getVersion() || codes.ready != ready) {
+            codes = new RenderedLoginCodes(config.getVersion(), ready);
+            renderedLoginCodes.put(config.getName(), codes);
+        }
+
+        String rendered = codes.byLocale.get(locale);
+        if (rendered == null) {
+            rendered = renderLoginCode(config, ready);
+            codes.byLocale.put(locale, rendered);
+        }
+        return rendered;
+    }
+
+    private String renderLoginCode(ProviderConfig config, boolean ready) throws Exception
+    {
+        if (!ready) {
+            return "<!-- IdentityOAuth Provider:  " + config.getName() + " not ready -->\r\n";
+        }
+        // Convert input in XWiki Syntax 2.1 into XHTML. The result is stored in the printer.
+        WikiPrinter printer = new DefaultWikiPrinter();
+        converter.convert(new StringReader(config.getPreparedLoginCode()), config.getLoginCodeSyntax(),
+            Syntax.XHTML_1_0, printer);
+        return "<!-- IdentityOAuth Provider: " + config.getName() + " -->\r\n" + printer.toString();
+    }
+
+    private Locale getLocale(XWikiContext context)
+    {
+        Locale locale = context != null ? context.getLocale() : null;
+        return locale != null ? locale : Locale.ROOT;
+    }
+
+    /**
+     * The renderings of one provider configuration, for each locale in which the login page was requested.
+     */
+    static final class RenderedLoginCodes
+    {
+        private final long version;
+
+        private final boolean ready;
+
+        private final Map<Locale, String> byLocale = new ConcurrentHashMap<>();
+
+        RenderedLoginCodes(long version, boolean ready)
+        {
+            this.version = version;
+            this.ready = ready;
+        }
+    }
+}
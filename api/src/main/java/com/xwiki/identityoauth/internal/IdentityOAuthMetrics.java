@@ -0,0 +1,256 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * Measures the phases of the OAuth dialogs per provider: latency histograms, counts of successes and failures (per
+ * exception type) and numbers of phases in progress. The measures are published through JMX under the name
+ * {@value #OBJECT_NAME} and through {@link com.xwiki.identityoauth.IdentityOAuthScriptService#getMetrics()}, as a
+ * flat map whose keys are made of the provider, the phase and the measure (e.g. {@code google.TOKEN_EXCHANGE.p95},
+ * in milliseconds).
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthMetrics.class)
+@Singleton
+public class IdentityOAuthMetrics implements IdentityOAuthMetricsMXBean, Initializable, Disposable
+{
+    /**
+     * The phases measured.
+     */
+    public enum Phase
+    {
+        /** Building the URL of the authorization dialog. */
+        AUTHORIZATION_URL,
+        /** Exchanging the authorization code against a token. */
+        TOKEN_EXCHANGE,
+        /** Validating the ID token received with the token. */
+        ID_TOKEN_VALIDATION,
+        /** Fetching the identity of the user. */
+        IDENTITY_FETCH,
+        /** Finding, creating or updating the XWiki user. */
+        USER_RESOLUTION,
+        /** Saving the user document at login. */
+        USER_SAVE,
+        /** Fetching and storing the avatar, in the background. */
+        AVATAR_SYNC,
+        /** The whole processing of the return from the provider. */
+        OAUTH_RETURN
+    }
+
+    /**
+     * An operation being measured.
+     *
+     * @param <T> the type of the result of the operation.
+     */
+    @FunctionalInterface
+    public interface MeasuredOperation<T>
+    {
+        /**
+         * @return the result of the operation.
+         * @throws Exception if the operation failed.
+         */
+        T run() throws Exception;
+    }
+
+    static final String OBJECT_NAME = "com.xwiki.identityoauth:type=Metrics";
+
+    private static final String SEPARATOR = ".";
+
+    // upper bounds, in milliseconds, of the buckets of the latency histograms; the last bucket is unbounded
+    private static final long[] BUCKET_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99"};
+
+    @Inject
+    private Logger log;
+
+    private final Map<String, PhaseMetrics> metrics = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // A former instance stays registered when the extension is reinstalled.
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            log.warn("Could not publish the IdentityOAuth metrics through JMX: [{}].", e.toString());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            log.debug("Could not unregister the IdentityOAuth metrics.", e);
+        }
+    }
+
+    /**
+     * Runs an operation and measures it.
+     *
+     * @param provider  the name of the provider involved.
+     * @param phase     the phase the operation is part of.
+     * @param operation the operation.
+     * @param <T>       the type of the result of the operation.
+     * @return the result of the operation.
+     * @throws Exception the exception thrown by the operation.
+     */
+    public <T> T measure(String provider, Phase phase, MeasuredOperation<T> operation) throws Exception
+    {
+        PhaseMetrics phaseMetrics = metrics.computeIfAbsent(provider + SEPARATOR + phase, k -> new PhaseMetrics());
+        phaseMetrics.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = operation.run();
+            succeeded = true;
+            return result;
+        } catch (Exception e) {
+            phaseMetrics.exceptions.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+            throw e;
+        } finally {
+            phaseMetrics.inFlight.decrementAndGet();
+            phaseMetrics.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), succeeded);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getMetrics()
+    {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, PhaseMetrics> entry : metrics.entrySet()) {
+            entry.getValue().snapshot(entry.getKey() + SEPARATOR, snapshot);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void reset()
+    {
+        metrics.clear();
+    }
+
+    /**
+     * The measures of one phase for one provider.
+     */
+    private static final class PhaseMetrics
+    {
+        private final LongAdder successes = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final AtomicLong inFlight = new AtomicLong();
+
+        private final LongAdder totalTime = new LongAdder();
+
+        private final AtomicLong maxTime = new AtomicLong();
+
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+        private final Map<String, LongAdder> exceptions = new ConcurrentHashMap<>();
+
+        PhaseMetrics()
+        {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis, boolean succeeded)
+        {
+            (succeeded ? successes : failures).increment();
+            totalTime.add(millis);
+            maxTime.accumulateAndGet(millis, Math::max);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+        }
+
+        void snapshot(String prefix, Map<String, Long> snapshot)
+        {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            snapshot.put(prefix + "successes", successes.sum());
+            snapshot.put(prefix + "failures", failures.sum());
+            snapshot.put(prefix + "inFlight", inFlight.get());
+            snapshot.put(prefix + "count", count);
+            snapshot.put(prefix + "totalTime", totalTime.sum());
+            snapshot.put(prefix + "maxTime", maxTime.get());
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                snapshot.put(prefix + PERCENTILE_NAMES[p], getPercentile(counts, count, PERCENTILES[p]));
+            }
+            for (Map.Entry<String, LongAdder> exception : exceptions.entrySet()) {
+                snapshot.put(prefix + "exceptions." + exception.getKey(), exception.getValue().sum());
+            }
+        }
+
+        private long getPercentile(long[] counts, long count, double percentile)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long cumulated = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+            // In the unbounded bucket: the maximum is the best estimate.
+            return maxTime.get();
+        }
+    }
+}
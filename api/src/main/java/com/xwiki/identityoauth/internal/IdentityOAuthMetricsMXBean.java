@@ -0,0 +1,41 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link IdentityOAuthMetrics}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public interface IdentityOAuthMetricsMXBean
+{
+    /**
+     * @return the current measures, by provider, phase and measure.
+     */
+    Map<String, Long> getMetrics();
+
+    /**
+     * Forgets all the measures.
+     */
+    void reset();
+}
@@ -21,8 +21,6 @@ package com.xwiki.identityoauth.internal;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.List;
-import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -48,6 +46,9 @@ public class IdentityOAuthProviderLoader
     @Inject
     private IdentityOAuthConfigTools ioConfigObjects;
 
+    @Inject
+    private IdentityOAuthLoginCodeRenderer loginCodeRenderer;
+
     @Inject
     private Execution execution;
 
@@ -63,19 +64,19 @@ public class IdentityOAuthProviderLoader
     }
 
     /**
-     * Clears and rebuilds the entire provider map.
+     * Builds a new registry of the providers from the configuration. The registry is complete, including the
+     * renderings of the login-codes in the current locale, when returned so that it can be published at once. The
+     * providers and renderings that are unchanged since the previous registry are carried over.
      *
-     * @param providers the provider map to be rebuilt.
-     * @return the list of the {@link ProviderConfig}.
+     * @param previous the registry currently published.
+     * @return the new registry.
      */
-    List<ProviderConfig> rebuildProviders(Map<String, IdentityOAuthProvider> providers)
+    ProviderRegistry rebuildProviders(ProviderRegistry previous)
     {
-        providers.clear();
-        List<ProviderConfig> providerConfigs = ioConfigObjects.loadAndRebuildProviders();
-        for (ProviderConfig config : providerConfigs) {
-            providers.put(config.getName(), config.getProvider());
-        }
-        return providerConfigs;
+        ProviderRegistry registry = new ProviderRegistry(
+            ioConfigObjects.loadAndRebuildProviders(previous.getProviderConfigs()), previous);
+        loginCodeRenderer.prepare(registry);
+        return registry;
     }
 
     /**
@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xwiki.identityoauth.IdentityOAuthManager;
+
+/**
+ * Runs the reloads of the configuration in the background. The reload requests received within a configurable window
+ * (property {@code xwiki.idoauth.reloadDelay} of xwiki.cfg, in milliseconds) are coalesced into a single reload so
+ * that bulk edits or imports of the configuration pages cause a single rebuild and that the threads saving documents
+ * do not pay for it.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthReloadScheduler.class)
+@Singleton
+public class IdentityOAuthReloadScheduler implements Initializable, Disposable
+{
+    private static final String RELOAD_DELAY_PROPERTY = "xwiki.idoauth.reloadDelay";
+
+    private static final long DEFAULT_RELOAD_DELAY = 2000;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private IdentityOAuthManager identityOAuthManager;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private ScheduledExecutorService executor;
+
+    private long reloadDelay;
+
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    private volatile Date lastReloadDate;
+
+    private volatile boolean lastReloadFailed;
+
+    @Override
+    public void initialize()
+    {
+        this.reloadDelay = xwikiCfg.getProperty(RELOAD_DELAY_PROPERTY, DEFAULT_RELOAD_DELAY);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IdentityOAuth configuration reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Requests a reload of the configuration. The reload happens after the configured delay, together with the ones
+     * requested meanwhile.
+     */
+    public void scheduleReload()
+    {
+        if (reloadPending.compareAndSet(false, true)) {
+            log.debug("Scheduling a reload of the IdentityOAuth providers in [{}] ms.", reloadDelay);
+            executor.schedule(new ReloadRunnable(), reloadDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return true if a reload is requested and has not started yet.
+     */
+    public boolean isReloadPending()
+    {
+        return reloadPending.get();
+    }
+
+    /**
+     * @return the date at which the last reload ended, or null if no reload was run by this scheduler.
+     */
+    public Date getLastReloadDate()
+    {
+        return lastReloadDate;
+    }
+
+    /**
+     * @return true if the last reload ended with an error.
+     */
+    public boolean isLastReloadFailed()
+    {
+        return lastReloadFailed;
+    }
+
+    /**
+     * @return the number of reloads run by this scheduler.
+     */
+    public long getReloadCount()
+    {
+        return reloadCount.get();
+    }
+
+    /**
+     * Reloads the configuration within an XWiki execution context.
+     */
+    private class ReloadRunnable extends AbstractXWikiRunnable
+    {
+        @Override
+        protected void runInternal()
+        {
+            // The requests received from now on need another reload.
+            reloadPending.set(false);
+            boolean failed = false;
+            try {
+                log.info("Reloading IdentityOAuth providers! ");
+                identityOAuthManager.reloadConfig();
+            } catch (Exception e) {
+                failed = true;
+                log.warn("Trouble at reloading the IdentityOAuth providers.", e);
+            } finally {
+                lastReloadFailed = failed;
+                lastReloadDate = new Date();
+                reloadCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -20,15 +20,11 @@
 package com.xwiki.identityoauth.internal;
 
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
 
 /**
- * Data object class meant to store short-term user authorization (tokens and authorization-code) for the OAuth provider
- * within the user-session.
+ * Data object class meant to store the state of the OAuth dialogs within the user-session. The authorizations
+ * (tokens and authorization-codes) are kept by the {@link IdentityOAuthTokenWallet}, the session only holds the name
+ * of the user owning them.
  *
  * @since 1.0
  */
@@ -40,11 +36,7 @@ class IdentityOAuthSessionInfo implements Serializable
 
     private String userToLogIn;
 
-    private Map<String, String> authorizationCodes = new HashMap<>();
-
-    private Map<String, String> tokens = new HashMap<>();
-
-    private Map<String, Date> expiries = new HashMap<>();
+    private String walletOwner;
 
     private String xredirect;
 
@@ -60,17 +52,9 @@ class IdentityOAuthSessionInfo implements Serializable
 
     void clear(String provider)
     {
-        Set<String> providers;
-        if (provider != null) {
-            providers = Collections.singleton(provider);
-        } else {
-            providers = authorizationCodes.keySet();
-        }
-
-        for (String prov : providers) {
-            tokens.remove(prov);
-            authorizationCodes.remove(prov);
-            xredirect = null;
+        xredirect = null;
+        if (provider == null) {
+            walletOwner = null;
         }
     }
 
@@ -84,34 +68,17 @@ class IdentityOAuthSessionInfo implements Serializable
         this.userToLogIn = userToLogIn;
     }
 
-    String getAuthorizationCode(String provider)
-    {
-        return authorizationCodes.get(provider);
-    }
-
-    void setAuthorizationCode(String provider, String authorizationCode)
-    {
-        this.authorizationCodes.put(provider, authorizationCode);
-    }
-
-    String getToken(String provider)
-    {
-        return tokens.get(provider);
-    }
-
-    void setToken(String provider, String token)
-    {
-        this.tokens.put(provider, token);
-    }
-
-    Date getTokenExpiry(String provider)
+    /**
+     * @return the serialized reference of the user whose authorizations are used in this session, or null.
+     */
+    String getWalletOwner()
     {
-        return expiries.get(provider);
+        return walletOwner;
     }
 
-    void setTokenExpiry(String provider, Date expDate)
+    void setWalletOwner(String walletOwner)
     {
-        expiries.put(provider, expDate);
+        this.walletOwner = walletOwner;
     }
 
     String pickXredirect()
@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xwiki.identityoauth.IdentityOAuthManager;
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.IdentityOAuthTokens;
+
+/**
+ * Refreshes, in the background, the tokens of the {@link IdentityOAuthTokenWallet} which are about to expire so that
+ * {@link IdentityOAuthManager#requestCurrentToken(String)} serves valid tokens without calling the providers. The
+ * wallet is inspected periodically (property {@code xwiki.idoauth.tokenRefresh.interval} of xwiki.cfg, in seconds)
+ * and the tokens expiring within the next period (property {@code xwiki.idoauth.tokenRefresh.ahead}, in seconds) are
+ * refreshed one by one, with the refresh-token received with them, using
+ * {@link IdentityOAuthProvider#refreshToken(String)}. A jitter, stable per token, spreads the refreshes of tokens
+ * created at the same time over several inspections. The inspections start with the {@link IdentityOAuthManager}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthTokenRefresher.class)
+@Singleton
+public class IdentityOAuthTokenRefresher implements Initializable, Disposable
+{
+    private static final String INTERVAL_PROPERTY = "xwiki.idoauth.tokenRefresh.interval";
+
+    private static final String AHEAD_PROPERTY = "xwiki.idoauth.tokenRefresh.ahead";
+
+    private static final long DEFAULT_INTERVAL = 60;
+
+    private static final long DEFAULT_AHEAD = 300;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private IdentityOAuthTokenWallet tokenWallet;
+
+    @Inject
+    private IdentityOAuthManager identityOAuthManager;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private ScheduledExecutorService executor;
+
+    private long interval;
+
+    private long ahead;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    @Override
+    public void initialize()
+    {
+        this.interval = TimeUnit.SECONDS.toMillis(Math.max(1, xwikiCfg.getProperty(INTERVAL_PROPERTY,
+            DEFAULT_INTERVAL)));
+        this.ahead = TimeUnit.SECONDS.toMillis(Math.max(0, xwikiCfg.getProperty(AHEAD_PROPERTY, DEFAULT_AHEAD)));
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IdentityOAuth token refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the periodic inspections of the wallet, if not yet started.
+     */
+    public void start()
+    {
+        if (started.compareAndSet(false, true)) {
+            // The first run is delayed randomly so that the nodes of a cluster do not inspect their wallets together.
+            executor.scheduleWithFixedDelay(new RefreshRunnable(),
+                interval + ThreadLocalRandom.current().nextLong(interval), interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of tokens refreshed.
+     */
+    public long getRefreshCount()
+    {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return the number of refreshes which ended with an error.
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    private void refreshExpiringTokens()
+    {
+        long now = System.currentTimeMillis();
+        // The jitter of a token is at most one interval, so the tokens are looked for up to one interval further.
+        for (IdentityOAuthTokenWallet.WalletEntry entry : tokenWallet.getEntriesExpiringBefore(
+            now + ahead + 2 * interval))
+        {
+            if (entry.isRefreshable() && entry.getExpiryTime() - getJitter(entry) <= now + ahead + interval) {
+                IdentityOAuthProvider provider = identityOAuthManager.getProvider(entry.getProvider());
+                if (provider != null) {
+                    refreshToken(provider, entry);
+                }
+            }
+        }
+    }
+
+    private void refreshToken(IdentityOAuthProvider provider, IdentityOAuthTokenWallet.WalletEntry entry)
+    {
+        try {
+            IdentityOAuthTokens tokens = provider.refreshToken(entry.getRefreshToken());
+            if (tokens == null || tokens.getAccessToken() == null) {
+                entry.setRefreshable(false);
+            } else if (tokenWallet.replaceToken(entry, tokens)) {
+                refreshCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            // The token stays usable until its expiry and is attempted again at the next inspection.
+            failureCount.incrementAndGet();
+            log.warn("Trouble at refreshing a token of [{}] for [{}].", entry.getProvider(), entry.getUser(), e);
+        }
+    }
+
+    private long getJitter(IdentityOAuthTokenWallet.WalletEntry entry)
+    {
+        return Math.floorMod((long) System.identityHashCode(entry), interval);
+    }
+
+    /**
+     * Inspects the wallet within an XWiki execution context.
+     */
+    private class RefreshRunnable extends AbstractXWikiRunnable
+    {
+        @Override
+        protected void runInternal()
+        {
+            try {
+                refreshExpiringTokens();
+            } catch (Exception e) {
+                log.warn("Trouble at refreshing the IdentityOAuth tokens.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xwiki.identityoauth.IdentityOAuthTokens;
+
+/**
+ * Keeps the authorization codes and tokens obtained from the providers, per user and provider, outside of the HTTP
+ * sessions which only hold the name of the user (see {@link IdentityOAuthSessionInfo#getWalletOwner()}). A token is
+ * thus shared by the sessions of the user and is not replicated with the sessions; a logout in one of them forgets
+ * the tokens of the user.
+ * <p>
+ * The entries are dropped when their token expires. The wallet is bounded (property
+ * {@code xwiki.idoauth.tokenWallet.size} of xwiki.cfg): when it is full, the entry expiring first is evicted. The
+ * entries are also kept ordered by expiry so that the expired ones are purged, and the first one evicted, without
+ * scanning the wallet.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = IdentityOAuthTokenWallet.class)
+@Singleton
+public class IdentityOAuthTokenWallet implements Initializable
+{
+    private static final String SIZE_PROPERTY = "xwiki.idoauth.tokenWallet.size";
+
+    private static final int DEFAULT_SIZE = 10000;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    private final Map<String, WalletEntry> entries = new ConcurrentHashMap<>();
+
+    // The entries are added here after being put in the map and removed after being removed from it: each entry of
+    // the map is found here once stored, and the entries left here by concurrent replacements are dropped when first.
+    private final NavigableSet<WalletEntry> expiryOrder = new ConcurrentSkipListSet<>(
+        Comparator.comparingLong(WalletEntry::getExpiryTime).thenComparingLong(WalletEntry::getSequence));
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private int maxSize;
+
+    @Override
+    public void initialize()
+    {
+        this.maxSize = Math.max(1, xwikiCfg.getProperty(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    /**
+     * Stores the authorization obtained by a user, replacing the previous one for this provider.
+     *
+     * @param user              the serialized reference of the user.
+     * @param provider          the name of the provider.
+     * @param authorizationCode the authorization code read at the OAuth return.
+     * @param tokens            the tokens created from the authorization code.
+     */
+    void store(String user, String provider, String authorizationCode, IdentityOAuthTokens tokens)
+    {
+        WalletEntry entry = new WalletEntry(user, provider, authorizationCode, tokens.getAccessToken(),
+            tokens.getRefreshToken(), tokens.getExpiry(), sequence.incrementAndGet());
+        forget(entries.put(getKey(user, provider), entry));
+        expiryOrder.add(entry);
+        purge();
+    }
+
+    /**
+     * Replaces the token of an entry, unless the entry was replaced or removed meanwhile.
+     *
+     * @param entry  the entry whose token was refreshed.
+     * @param tokens the new token, its expiry date and the new refresh-token, or null to keep the one of the entry.
+     * @return true if the token was replaced.
+     */
+    boolean replaceToken(WalletEntry entry, IdentityOAuthTokens tokens)
+    {
+        String refreshToken = tokens.getRefreshToken() != null ? tokens.getRefreshToken() : entry.getRefreshToken();
+        WalletEntry newEntry = new WalletEntry(entry.getUser(), entry.getProvider(), entry.getAuthorizationCode(),
+            tokens.getAccessToken(), refreshToken, tokens.getExpiry(), sequence.incrementAndGet());
+        if (entries.replace(getKey(entry.getUser(), entry.getProvider()), entry, newEntry)) {
+            expiryOrder.add(newEntry);
+            forget(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param time a time in milliseconds.
+     * @return the entries whose token expires before the given time and is not yet expired.
+     */
+    List<WalletEntry> getEntriesExpiringBefore(long time)
+    {
+        long now = System.currentTimeMillis();
+        List<WalletEntry> expiring = new ArrayList<>();
+        for (WalletEntry entry : expiryOrder) {
+            if (entry.getExpiryTime() >= time) {
+                break;
+            }
+            if (!entry.isExpired(now) && entries.get(getKey(entry.getUser(), entry.getProvider())) == entry) {
+                expiring.add(entry);
+            }
+        }
+        return expiring;
+    }
+
+    /**
+     * @param user     the serialized reference of the user, can be null.
+     * @param provider the name of the provider.
+     * @return the authorization of the user for the provider, or null if none or if the token is expired.
+     */
+    WalletEntry get(String user, String provider)
+    {
+        if (user == null) {
+            return null;
+        }
+        String key = getKey(user, provider);
+        WalletEntry entry = entries.get(key);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            if (entries.remove(key, entry)) {
+                forget(entry);
+            }
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Forgets the authorization of a user for a provider.
+     *
+     * @param user     the serialized reference of the user, can be null.
+     * @param provider the name of the provider.
+     */
+    void remove(String user, String provider)
+    {
+        if (user != null) {
+            forget(entries.remove(getKey(user, provider)));
+        }
+    }
+
+    /**
+     * @return the number of authorizations kept, expired ones included until they are purged.
+     */
+    public int getSize()
+    {
+        return entries.size();
+    }
+
+    private String getKey(String user, String provider)
+    {
+        // The length prefix keeps the key unambiguous whatever characters the names contain.
+        return provider.length() + ":" + provider + user;
+    }
+
+    /**
+     * Drops the expired entries, which are the first ones of the expiry order, and the ones expiring first while the
+     * wallet is full.
+     */
+    private void purge()
+    {
+        long now = System.currentTimeMillis();
+        WalletEntry first;
+        while ((first = firstEntry()) != null && (first.isExpired(now) || entries.size() > maxSize)) {
+            if (!first.isExpired(now)) {
+                log.debug("Token wallet full, evicting the token expiring at [{}].", first.getExpiry());
+            }
+            entries.remove(getKey(first.getUser(), first.getProvider()), first);
+            expiryOrder.remove(first);
+        }
+    }
+
+    private WalletEntry firstEntry()
+    {
+        Iterator<WalletEntry> iterator = expiryOrder.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private void forget(WalletEntry entry)
+    {
+        if (entry != null) {
+            expiryOrder.remove(entry);
+        }
+    }
+
+    /**
+     * The authorization of a user for a provider.
+     */
+    static final class WalletEntry
+    {
+        private final String user;
+
+        private final String provider;
+
+        private final String authorizationCode;
+
+        private final String token;
+
+        private final String refreshToken;
+
+        private final Date expiry;
+
+        // orders the entries expiring at the same time
+        private final long sequence;
+
+        // false once the provider answered that the token cannot be refreshed
+        private volatile boolean refreshable = true;
+
+        WalletEntry(String user, String provider, String authorizationCode, String token, String refreshToken,
+            Date expiry, long sequence)
+        {
+            this.user = user;
+            this.provider = provider;
+            this.authorizationCode = authorizationCode;
+            this.token = token;
+            this.refreshToken = refreshToken;
+            this.expiry = expiry;
+            this.sequence = sequence;
+        }
+
+        String getUser()
+        {
+            return user;
+        }
+
+        String getProvider()
+        {
+            return provider;
+        }
+
+        boolean isRefreshable()
+        {
+            return refreshable && refreshToken != null;
+        }
+
+        void setRefreshable(boolean refreshable)
+        {
+            this.refreshable = refreshable;
+        }
+
+        String getAuthorizationCode()
+        {
+            return authorizationCode;
+        }
+
+        String getToken()
+        {
+            return token;
+        }
+
+        /**
+         * @return the refresh-token received with the token, or null if none was.
+         */
+        String getRefreshToken()
+        {
+            return refreshToken;
+        }
+
+        Date getExpiry()
+        {
+            return expiry;
+        }
+
+        long getSequence()
+        {
+            return sequence;
+        }
+
+        long getExpiryTime()
+        {
+            return expiry != null ? expiry.getTime() : Long.MAX_VALUE;
+        }
+
+        boolean isExpired(long now)
+        {
+            return getExpiryTime() <= now;
+        }
+    }
+}
@@ -19,32 +19,52 @@
  */
 package com.xwiki.identityoauth.internal;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Triple;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
 import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.oidc.auth.store.OIDCUser;
 import org.xwiki.contrib.oidc.auth.store.OIDCUserStore;
 import org.xwiki.model.reference.AttachmentReferenceResolver;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.stability.Unstable;
 
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xwiki.identityoauth.IdentityOAuthException;
@@ -52,14 +72,41 @@ import com.xwiki.identityoauth.IdentityOAuthProvider;
 
 /**
  * Access and manipulation of the users' objects.
+ * <p>
+ * The user matching an identity is remembered, per wiki, issuer and subject, in a cache bounded in size and in time
+ * (properties {@code xwiki.idoauth.userCache.size} and {@code xwiki.idoauth.userCache.lifespan} of xwiki.cfg, the
+ * latter in seconds) so that repeated logins do not search the user store again. The issuer is the one recorded in
+ * the OIDC user store, i.e. the provider name for the identities without issuer. When a user document is deleted,
+ * which includes renames, the identity it records is forgotten; the users found deleted at login are forgotten too.
+ * <p>
+ * A fingerprint of the identity received is stored on the user's {@code IdentityOAuth.IdentityOAuthUserClass} object:
+ * as long as the provider sends the same identity, the user document is neither updated nor saved at login.
+ * <p>
+ * The first logins of an identity are serialized by a lock striped on the issuer and subject so that concurrent
+ * logins do not create several users. The lock is local to the node: in a cluster, the requests of a user are expected
+ * to reach the same node (sticky sessions), as the sessions holding the tokens already require.
  *
  * @version $Id$
  * @since 1.0
  */
 @Component(roles = IdentityOAuthUserTools.class)
 @Singleton
-public class IdentityOAuthUserTools implements IdentityOAuthConstants
+public class IdentityOAuthUserTools implements IdentityOAuthConstants, Initializable, Disposable
 {
+    private static final String USER_CACHE_SIZE_PROPERTY = "xwiki.idoauth.userCache.size";
+
+    private static final String USER_CACHE_LIFESPAN_PROPERTY = "xwiki.idoauth.userCache.lifespan";
+
+    private static final int DEFAULT_USER_CACHE_SIZE = 10000;
+
+    private static final int DEFAULT_USER_CACHE_LIFESPAN = 3600;
+
+    private static final String IDENTITY_FINGERPRINT = "identityFingerprint";
+
+    private static final int IDENTITY_LOCK_STRIPES = 64;
+
+    private final LocalDocumentReference userClassRef = new LocalDocumentReference(IDENTITY_SPACE, USER_CLASS);
+
     // environment
     @Inject
     private Logger log;
@@ -86,30 +133,172 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
     @Inject
     private OIDCUserStore oidcUserStore;
 
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private IdentityOAuthAvatarSynchronizer avatarSynchronizer;
+
+    @Inject
+    private IdentityOAuthMetrics metrics;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    // wiki, issuer and subject of the identity -> reference of the user document
+    private Cache<DocumentReference> userReferenceCache;
+
+    private final AtomicLong userCacheHits = new AtomicLong();
+
+    private final AtomicLong userCacheMisses = new AtomicLong();
+
+    // striped by identity, so that the resolutions of distinct identities rarely wait for each other
+    private final Lock[] identityLocks = new Lock[IDENTITY_LOCK_STRIPES];
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        for (int i = 0; i < identityLocks.length; i++) {
+            identityLocks[i] = new ReentrantLock();
+        }
+        LRUCacheConfiguration configuration = new LRUCacheConfiguration("identityoauth.users",
+            xwikiCfg.getProperty(USER_CACHE_SIZE_PROPERTY, DEFAULT_USER_CACHE_SIZE));
+        configuration.getLRUEvictionConfiguration()
+            .setLifespan(xwikiCfg.getProperty(USER_CACHE_LIFESPAN_PROPERTY, DEFAULT_USER_CACHE_LIFESPAN));
+        try {
+            this.userReferenceCache = cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the IdentityOAuth user cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (userReferenceCache != null) {
+            userReferenceCache.dispose();
+        }
+    }
+
     /**
      * Updates or creates the XWiki user as found.
      *
-     * @param id       The information gathered from the OpenID request.
-     * @param provider The IdentotyOAuthProvider that delivered.
-     * @param token    The token so sa to fetch the picture.
+     * @param id                The information gathered from the OpenID request.
+     * @param provider          The IdentotyOAuthProvider that delivered.
+     * @param configFingerprint the fingerprint of the configuration of the provider, which drives the enrichment of
+     *                          the user.
+     * @param token             The token so sa to fetch the picture.
      * @return the name of the user created (or null if none was created).
      */
     String updateXWikiUser(IdentityOAuthProvider.AbstractIdentityDescription id, IdentityOAuthProvider provider,
-            String token)
+            String configFingerprint, String token)
     {
-        XWikiContext context = contextProvider.get();
-        XWikiDocument xwikiUser = null;
-        xwikiUser = findExistingUser(id);
-
+        String cacheKey =
+            getUserCacheKey(contextProvider.get().getWikiId(), getIssuerURL(provider, id), id.internalId);
+        XWikiDocument xwikiUser = getCachedUser(cacheKey);
         if (xwikiUser != null) {
-            // user found.. we should update it if needed
-            updateUser(xwikiUser, id, provider, token);
+            userCacheHits.incrementAndGet();
+            updateUser(xwikiUser, id, provider, configFingerprint);
         } else {
-            xwikiUser = createUser(id, provider, token);
+            xwikiUser = findOrCreateUser(cacheKey, id, provider, configFingerprint);
         }
+        // The avatar is fetched in the background so that slow picture endpoints do not delay the login.
+        avatarSynchronizer.scheduleSynchronization(xwikiUser.getDocumentReference(), id, provider, token);
         return serializer.serialize(xwikiUser.getDocumentReference());
     }
 
+    /**
+     * Resolves the user of an identity which is not in the cache, creating it if needed. The concurrent logins of the
+     * same identity (e.g. from several tabs) are serialized so that a single user is created: the ones waiting find
+     * the user resolved by the first one in the cache.
+     */
+    private XWikiDocument findOrCreateUser(String cacheKey, IdentityOAuthProvider.AbstractIdentityDescription id,
+        IdentityOAuthProvider provider, String configFingerprint)
+    {
+        Lock lock = identityLocks[Math.floorMod(cacheKey.hashCode(), identityLocks.length)];
+        lock.lock();
+        try {
+            XWikiDocument xwikiUser = getCachedUser(cacheKey);
+            if (xwikiUser != null) {
+                // resolved by a concurrent login of the same identity
+                userCacheHits.incrementAndGet();
+            } else {
+                userCacheMisses.incrementAndGet();
+                xwikiUser = findExistingUser(id);
+            }
+            if (xwikiUser != null) {
+                // user found.. we should update it if needed
+                updateUser(xwikiUser, id, provider, configFingerprint);
+            } else {
+                xwikiUser = createUser(id, provider, configFingerprint);
+            }
+            // Both the found and the created users are associated to this identity by the OIDC user store.
+            userReferenceCache.set(cacheKey, xwikiUser.getDocumentReference());
+            return xwikiUser;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the identity associated to a user when the user is deleted. The identity is the one recorded in the OIDC
+     * user store; the other identities which may still lead to the deleted user are forgotten at their next login,
+     * when the user is not found.
+     *
+     * @param userDocument the user document as it was before its deletion.
+     */
+    void invalidateUser(XWikiDocument userDocument)
+    {
+        BaseObject oidcObject = userDocument.getXObject(OIDCUser.CLASS_REFERENCE);
+        if (oidcObject != null) {
+            OIDCUser oidcUser = new OIDCUser(oidcObject);
+            log.debug("Forgetting the identity of the deleted user [{}].", userDocument.getDocumentReference());
+            userReferenceCache.remove(getUserCacheKey(userDocument.getDocumentReference().getWikiReference().getName(),
+                oidcUser.getIssuer(), oidcUser.getSubject()));
+        }
+    }
+
+    /**
+     * @return the number of logins for which the user was found in the cache.
+     */
+    long getUserCacheHits()
+    {
+        return userCacheHits.get();
+    }
+
+    /**
+     * @return the number of logins for which the user had to be searched.
+     */
+    long getUserCacheMisses()
+    {
+        return userCacheMisses.get();
+    }
+
+    private String getUserCacheKey(String wikiId, String issuer, String subject)
+    {
+        // The length prefixes keep the key unambiguous whatever characters the wiki, issuer and subject contain.
+        return wikiId.length() + ":" + wikiId + issuer.length() + ":" + issuer + subject;
+    }
+
+    private XWikiDocument getCachedUser(String cacheKey)
+    {
+        DocumentReference userReference = userReferenceCache.get(cacheKey);
+        if (userReference != null) {
+            try {
+                XWikiContext context = contextProvider.get();
+                XWikiDocument userDoc = context.getWiki().getDocument(userReference, context);
+                if (!userDoc.isNew()) {
+                    return userDoc;
+                }
+            } catch (Exception e) {
+                log.debug("Could not load the cached user [{}].", userReference, e);
+            }
+            userReferenceCache.remove(cacheKey);
+        }
+        return null;
+    }
+
     private XWikiDocument findExistingUser(IdentityOAuthProvider.AbstractIdentityDescription id)
     {
         try {
@@ -117,19 +306,8 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
             if (candidateDoc != null) {
                 return candidateDoc;
             }
-            List<String> wikiUserList = null;
-            for (String email : id.emails) {
-                wikiUserList = queryManager.createQuery(
-                        "from doc.object(XWiki.XWikiUsers) as user where user.email=:email",
-                        Query.XWQL)
-                        .bindValue(EMAIL, email).execute();
-                if (wikiUserList != null && !wikiUserList.isEmpty()) {
-                    break;
-                }
-            }
-
-            if (wikiUserList != null && !wikiUserList.isEmpty()) {
-                String userName = (String) wikiUserList.get(0);
+            String userName = findUserByEmail(id.emails);
+            if (userName != null) {
                 candidateDoc = contextProvider.get().getWiki()
                         .getDocument(userResolver.resolve(userName), contextProvider.get());
             }
@@ -140,8 +318,47 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
         }
     }
 
+    /**
+     * Searches, with a single query, the users having one of the given emails.
+     *
+     * @param emails the emails of the identity, the first ones being preferred.
+     * @return the name of the user with the email of lowest position (compared case-insensitively) or null.
+     */
+    private String findUserByEmail(List<String> emails) throws QueryException
+    {
+        List<String> normalizedEmails = new ArrayList<>(emails.size());
+        Set<String> queriedEmails = new LinkedHashSet<>();
+        for (String email : emails) {
+            if (StringUtils.isNotBlank(email)) {
+                String trimmedEmail = email.trim();
+                normalizedEmails.add(trimmedEmail.toLowerCase(Locale.ROOT));
+                // Both variants are queried so that the email column index can be used whatever the case stored.
+                queriedEmails.add(trimmedEmail);
+                queriedEmails.add(trimmedEmail.toLowerCase(Locale.ROOT));
+            }
+        }
+        if (queriedEmails.isEmpty()) {
+            return null;
+        }
+
+        List<Object[]> candidates = queryManager.createQuery(
+                "select doc.fullName, user.email from Document doc, doc.object(XWiki.XWikiUsers) as user "
+                    + "where user.email in (:emails)", Query.XWQL)
+                .bindValue("emails", new ArrayList<>(queriedEmails)).execute();
+        String userName = null;
+        int bestPosition = Integer.MAX_VALUE;
+        for (Object[] candidate : candidates) {
+            int position = normalizedEmails.indexOf(StringUtils.trim((String) candidate[1]).toLowerCase(Locale.ROOT));
+            if (position > -1 && position < bestPosition) {
+                bestPosition = position;
+                userName = (String) candidate[0];
+            }
+        }
+        return userName;
+    }
+
     private XWikiDocument createUser(IdentityOAuthProvider.AbstractIdentityDescription id,
-            IdentityOAuthProvider provider, String token)
+            IdentityOAuthProvider provider, String configFingerprint)
     {
         try {
             // user not found.. need to create new user
@@ -175,11 +392,15 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
             BaseObject userObj = userDoc.getXObject(getXWikiUserClassRef());
 
             userObj.set(ACTIVE, 1, context);
-            fetchUserImage(userDoc, userObj, id, provider, token);
+            provider.enrichUserObject(id, userDoc);
+            updateIdentityFingerprint(userDoc, computeIdentityFingerprint(id, provider, configFingerprint));
 
             oidcUserStore.updateOIDCUser(userDoc, getIssuerURL(provider, id), id.internalId);
 
-            context.getWiki().saveDocument(userDoc, "IdentityOAuth user creation", false, context);
+            metrics.measure(provider.getProviderHint(), IdentityOAuthMetrics.Phase.USER_SAVE, () -> {
+                context.getWiki().saveDocument(userDoc, "IdentityOAuth user creation", false, context);
+                return null;
+            });
             return userDoc;
         } catch (Exception e) {
             throw new IdentityOAuthException(e);
@@ -197,8 +418,7 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
 
     private void updateUser(XWikiDocument userDoc,
             IdentityOAuthProvider.AbstractIdentityDescription id,
-            IdentityOAuthProvider provider,
-            String token)
+            IdentityOAuthProvider provider, String configFingerprint)
     {
 
         try {
@@ -209,17 +429,25 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
                 return;
             }
 
-            boolean changed = updateBaseFields(userObj, id);
-
-            changed = changed || oidcUserStore.updateOIDCUser(userDoc, getIssuerURL(provider, id), id.internalId);
-
-            changed = changed || fetchUserImage(userDoc, userObj, id, provider, token);
+            String fingerprint = computeIdentityFingerprint(id, provider, configFingerprint);
+            BaseObject ioUserObj = userDoc.getXObject(userClassRef);
+            if (ioUserObj != null && fingerprint.equals(ioUserObj.getStringValue(IDENTITY_FINGERPRINT))) {
+                log.debug("Identity unchanged since the last login.");
+                return;
+            }
 
-            changed = changed || provider.enrichUserObject(id, userDoc);
+            // Each step runs, whatever the result of the previous ones.
+            boolean changed = updateBaseFields(userObj, id);
+            changed |= oidcUserStore.updateOIDCUser(userDoc, getIssuerURL(provider, id), id.internalId);
+            changed |= provider.enrichUserObject(id, userDoc);
+            changed |= updateIdentityFingerprint(userDoc, fingerprint);
 
             if (changed) {
                 log.debug("User changed.");
-                context.getWiki().saveDocument(userDoc, "Identity OAuth login user updated.", context);
+                metrics.measure(provider.getProviderHint(), IdentityOAuthMetrics.Phase.USER_SAVE, () -> {
+                    context.getWiki().saveDocument(userDoc, "Identity OAuth login user updated.", context);
+                    return null;
+                });
             } else {
                 log.debug("User unchanged.");
             }
@@ -233,17 +461,18 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
             IdentityOAuthProvider.AbstractIdentityDescription id)
     {
         XWikiContext context = contextProvider.get();
-        boolean changed = updateField(userObj, id.firstName, FIRSTNAME, context)
-                || updateField(userObj, id.lastName, LASTNAME, context);
+        boolean changed = updateField(userObj, id.firstName, FIRSTNAME, context);
+        changed |= updateField(userObj, id.lastName, LASTNAME, context);
         if (id.emails != null && id.emails.size() > 0) {
-            changed = changed || updateField(userObj, id.emails.get(0), EMAIL, context);
+            changed |= updateField(userObj, id.emails.get(0), EMAIL, context);
         }
         return changed;
     }
 
     private boolean updateField(BaseObject userObj, String value, String fieldName, XWikiContext context)
     {
-        if (!userObj.getStringValue(fieldName).equals(value)) {
+        // A missing value is read as an empty string.
+        if (!userObj.getStringValue(fieldName).equals(StringUtils.defaultString(value))) {
             userObj.set(fieldName, value, context);
             return true;
         } else {
@@ -251,68 +480,48 @@ public class IdentityOAuthUserTools implements IdentityOAuthConstants
         }
     }
 
-    private boolean fetchUserImage(XWikiDocument userDoc, BaseObject userObj,
-        IdentityOAuthProvider.AbstractIdentityDescription id, IdentityOAuthProvider provider, String token)
+    private boolean updateIdentityFingerprint(XWikiDocument userDoc, String fingerprint)
     {
-        XWikiAttachment currentAvatar = getAvatarAttachment(userDoc, userObj);
-        if (currentAvatar != null && currentAvatar.getAuthorReference() != null) {
+        BaseObject ioUserObj = userDoc.getXObject(userClassRef, true, contextProvider.get());
+        if (fingerprint.equals(ioUserObj.getStringValue(IDENTITY_FINGERPRINT))) {
             return false;
         }
-
-        Triple<InputStream, String, String> triple = provider.fetchUserImage(null, id, token);
-        if (triple != null && triple.getLeft() != null) {
-            try {
-                log.debug("Received profile photo [{}] from provider.", triple.getRight());
-                String fileName = getFileName(triple);
-
-                // Add a bookmark at the start of the Input Stream, to not lose the content when it is read for
-                // comparison.
-                InputStream newAvatarInputStream = triple.getLeft();
-                if (!newAvatarInputStream.markSupported()) {
-                    newAvatarInputStream = new ByteArrayInputStream(IOUtils.toByteArray(newAvatarInputStream));
-                }
-                newAvatarInputStream.mark(0);
-
-                if (currentAvatar == null || !IOUtils.contentEquals(
-                    currentAvatar.getContentInputStream(this.contextProvider.get()), newAvatarInputStream))
-                {
-                    newAvatarInputStream.reset();
-                    userObj.set(AVATAR, fileName, contextProvider.get());
-                    userDoc.setAttachment(fileName, newAvatarInputStream, contextProvider.get());
-                    log.debug("Added new avatar [{}].", fileName);
-                    return true;
-                }
-            } catch (Exception e) {
-                throw new IdentityOAuthException("Trouble at fetching user-image.", e);
-            }
-        }
-        return false;
-    }
-
-    private XWikiAttachment getAvatarAttachment(XWikiDocument userDoc, BaseObject userObj)
-    {
-        String fileName = userObj.getStringValue(AVATAR);
-        XWikiAttachment currentAvatar = null;
-        if (fileName != null && !fileName.isEmpty()) {
-            currentAvatar = userDoc.getAttachment(fileName);
-        }
-        return currentAvatar;
+        ioUserObj.setStringValue(IDENTITY_FINGERPRINT, fingerprint);
+        return true;
     }
 
-    private String getFileName(Triple<InputStream, String, String> triple)
+    /**
+     * Computes a digest of the identity as received from the provider: the values of all the fields of the
+     * description, including the ones of the provider-specific subclasses which the provider reads when enriching the
+     * user, the provider and its configuration, so that the users are updated once after the configuration of the
+     * enrichment changed. Fields whose values do not have a stable string representation make the fingerprint differ
+     * at each login, which only costs the update it is meant to avoid.
+     *
+     * @param id                the identity-description received at login.
+     * @param provider          the provider which delivered it.
+     * @param configFingerprint the fingerprint of the configuration of the provider, or null if unknown.
+     * @return the hexadecimal SHA-256 digest of the normalized identity.
+     */
+    String computeIdentityFingerprint(IdentityOAuthProvider.AbstractIdentityDescription id,
+        IdentityOAuthProvider provider, String configFingerprint)
     {
-        String fileName = triple.getRight();
-        String mediaType = triple.getMiddle();
-        if (fileName == null) {
-            if ("image/jpeg".equals(mediaType)) {
-                fileName = "image.jpeg";
-            } else if ("image/png".equals(mediaType)) {
-                fileName = "image.png";
-            } else {
-                throw new IllegalStateException("Unsupported avatar picture type \"" + mediaType + "\".");
+        StringBuilder normalized = new StringBuilder();
+        normalized.append(provider.getProviderHint()).append('\n').append(getIssuerURL(provider, id)).append('\n');
+        normalized.append(configFingerprint).append('\n');
+        List<Field> fields = FieldUtils.getAllFieldsList(id.getClass());
+        fields.sort(Comparator.comparing(Field::getName).thenComparing(f -> f.getDeclaringClass().getName()));
+        for (Field field : fields) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            try {
+                Object value = FieldUtils.readField(field, id, true);
+                normalized.append(field.getName()).append('=').append(value).append('\n');
+            } catch (IllegalAccessException e) {
+                throw new IdentityOAuthException("Can't read the identity field " + field.getName(), e);
             }
         }
-        return fileName;
+        return DigestUtils.sha256Hex(normalized.toString());
     }
 
     DocumentReference getXWikiUserClassRef()
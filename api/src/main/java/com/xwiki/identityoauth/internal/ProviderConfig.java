@@ -19,11 +19,14 @@
  */
 package com.xwiki.identityoauth.internal;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.xwiki.rendering.syntax.Syntax;
 
 import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.internal.resource.ProviderLogo;
 
 class ProviderConfig
 {
@@ -37,6 +40,12 @@ class ProviderConfig
 
     private int orderHint;
 
+    private long version;
+
+    private String fingerprint;
+
+    private List<ProviderLogo> logos = Collections.emptyList();
+
     private Map<String, String> config;
 
     private String preparedLoginCode;
@@ -83,6 +92,36 @@ class ProviderConfig
         this.orderHint = orderHint;
     }
 
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion(long version)
+    {
+        this.version = version;
+    }
+
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint)
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    public List<ProviderLogo> getLogos()
+    {
+        return logos;
+    }
+
+    public void setLogos(List<ProviderLogo> logos)
+    {
+        this.logos = logos;
+    }
+
     public Syntax getLoginCodeSyntax()
     {
         return loginCodeSyntax;
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.internal.resource.ProviderLogo;
+
+/**
+ * An immutable snapshot of the configured providers: the providers by name, their configurations in the display order,
+ * the images referenced by their login-codes and the renderings of these login-codes. A registry is built completely
+ * before being published by the {@link DefaultIdentityOAuthManager} so that request threads never see a partially
+ * loaded configuration and never need to lock.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+final class ProviderRegistry
+{
+    /**
+     * The registry used before the first load of the configuration.
+     */
+    static final ProviderRegistry EMPTY = new ProviderRegistry(Collections.emptyList(), null);
+
+    private final Map<String, IdentityOAuthProvider> providers;
+
+    private final List<ProviderConfig> providerConfigs;
+
+    private final Map<String, ProviderConfig> providerConfigsByName;
+
+    private final Map<String, ProviderLogo> logos;
+
+    private final Map<String, IdentityOAuthLoginCodeRenderer.RenderedLoginCodes> renderedLoginCodes =
+        new ConcurrentHashMap<>();
+
+    /**
+     * @param providerConfigs the configurations, in the display order, of the providers.
+     * @param previous the registry this one replaces, or null; the renderings of the login-codes are carried over
+     *     from it, the {@link IdentityOAuthLoginCodeRenderer} discards those whose configuration version changed.
+     */
+    ProviderRegistry(List<ProviderConfig> providerConfigs, ProviderRegistry previous)
+    {
+        Map<String, IdentityOAuthProvider> providerMap = new LinkedHashMap<>();
+        Map<String, ProviderConfig> configMap = new HashMap<>();
+        Map<String, ProviderLogo> logoMap = new HashMap<>();
+        for (ProviderConfig config : providerConfigs) {
+            providerMap.put(config.getName(), config.getProvider());
+            configMap.put(config.getName(), config);
+            for (ProviderLogo logo : config.getLogos()) {
+                logoMap.put(logo.getHash(), logo);
+            }
+            IdentityOAuthLoginCodeRenderer.RenderedLoginCodes codes =
+                previous != null ? previous.renderedLoginCodes.get(config.getName()) : null;
+            if (codes != null) {
+                renderedLoginCodes.put(config.getName(), codes);
+            }
+        }
+        this.providers = Collections.unmodifiableMap(providerMap);
+        this.providerConfigsByName = Collections.unmodifiableMap(configMap);
+        this.logos = Collections.unmodifiableMap(logoMap);
+        this.providerConfigs = Collections.unmodifiableList(new ArrayList<>(providerConfigs));
+    }
+
+    /**
+     * @param name the name of the provider.
+     * @return the provider or null if none is configured with this name.
+     */
+    IdentityOAuthProvider getProvider(String name)
+    {
+        return providers.get(name);
+    }
+
+    /**
+     * @return the providers indexed by their name.
+     */
+    Map<String, IdentityOAuthProvider> getProviders()
+    {
+        return providers;
+    }
+
+    /**
+     * @param name the name of the provider.
+     * @return the configuration of the provider or null if none is configured with this name.
+     */
+    ProviderConfig getProviderConfig(String name)
+    {
+        return providerConfigsByName.get(name);
+    }
+
+    /**
+     * @return the configurations of the providers, in the display order.
+     */
+    List<ProviderConfig> getProviderConfigs()
+    {
+        return providerConfigs;
+    }
+
+    /**
+     * @return the images referenced by the prepared login-codes, indexed by their hash.
+     */
+    Map<String, ProviderLogo> getLogos()
+    {
+        return logos;
+    }
+
+    /**
+     * @return the renderings of the login-codes, indexed by provider name; this is the only mutable part of the
+     *     registry, filled lazily by the {@link IdentityOAuthLoginCodeRenderer}.
+     */
+    Map<String, IdentityOAuthLoginCodeRenderer.RenderedLoginCodes> getRenderedLoginCodes()
+    {
+        return renderedLoginCodes;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal.resource;
+
+/**
+ * The image of a provider as referenced from its login-code, kept in memory to be served by
+ * {@link ProviderLogoResourceReferenceHandler}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public class ProviderLogo
+{
+    private final String hash;
+
+    private final String mediaType;
+
+    private final byte[] content;
+
+    /**
+     * @param hash the hexadecimal SHA-256 digest of the content, used to build the URL of the image.
+     * @param mediaType the media-type of the image.
+     * @param content the bytes of the image.
+     */
+    public ProviderLogo(String hash, String mediaType, byte[] content)
+    {
+        this.hash = hash;
+        this.mediaType = mediaType;
+        this.content = content;
+    }
+
+    /**
+     * @return the hexadecimal SHA-256 digest of the content.
+     */
+    public String getHash()
+    {
+        return hash;
+    }
+
+    /**
+     * @return the media-type of the image.
+     */
+    public String getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * @return the bytes of the image.
+     */
+    public byte[] getContent()
+    {
+        return content;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal.resource;
+
+import org.xwiki.resource.AbstractResourceReference;
+import org.xwiki.resource.ResourceType;
+
+/**
+ * Reference to a provider image served by {@link ProviderLogoResourceReferenceHandler}, e.g.
+ * {@code /xwiki/idoauth/logo/<hash>}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public class ProviderLogoResourceReference extends AbstractResourceReference
+{
+    /**
+     * The resource type of the IdentityOAuth resources.
+     */
+    public static final ResourceType TYPE = new ResourceType("idoauth");
+
+    /**
+     * The URL segment denoting a provider image.
+     */
+    public static final String LOGO_SEGMENT = "logo";
+
+    private final String hash;
+
+    /**
+     * @param hash the hash of the image.
+     */
+    public ProviderLogoResourceReference(String hash)
+    {
+        setType(TYPE);
+        this.hash = hash;
+    }
+
+    /**
+     * @return the hash of the image.
+     */
+    public String getHash()
+    {
+        return hash;
+    }
+}
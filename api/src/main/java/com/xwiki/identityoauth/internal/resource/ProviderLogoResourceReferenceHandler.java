@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal.resource;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.container.Container;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.resource.AbstractResourceReferenceHandler;
+import org.xwiki.resource.ResourceReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+import org.xwiki.resource.ResourceType;
+
+/**
+ * Serves the images of the providers. Their URL contains the hash of their content, thus they are served with a strong
+ * ETag and can be kept by the browsers for a long time.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component
+@Named("idoauth")
+@Singleton
+public class ProviderLogoResourceReferenceHandler extends AbstractResourceReferenceHandler<ResourceType>
+{
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    @Inject
+    private ProviderLogoStore logoStore;
+
+    @Inject
+    private Container container;
+
+    @Override
+    public List<ResourceType> getSupportedResourceReferences()
+    {
+        return Collections.singletonList(ProviderLogoResourceReference.TYPE);
+    }
+
+    @Override
+    public void handle(ResourceReference reference, ResourceReferenceHandlerChain chain)
+        throws ResourceReferenceHandlerException
+    {
+        ProviderLogoResourceReference logoReference = (ProviderLogoResourceReference) reference;
+        HttpServletRequest request = ((ServletRequest) container.getRequest()).getHttpServletRequest();
+        HttpServletResponse response = ((ServletResponse) container.getResponse()).getHttpServletResponse();
+        try {
+            ProviderLogo logo = logoStore.getLogo(logoReference.getHash());
+            if (logo == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else {
+                String etag = '"' + logo.getHash() + '"';
+                response.setHeader("ETag", etag);
+                response.setHeader("Cache-Control", CACHE_CONTROL);
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                } else {
+                    response.setContentType(logo.getMediaType());
+                    response.setContentLength(logo.getContent().length);
+                    response.getOutputStream().write(logo.getContent());
+                }
+            }
+        } catch (IOException e) {
+            throw new ResourceReferenceHandlerException(
+                String.format("Failed to serve the IdentityOAuth image [%s].", logoReference.getHash()), e);
+        }
+
+        // Be a good citizen, continue the chain, in case some lower-priority handler has something to do.
+        chain.handleNext(reference);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal.resource;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.resource.CreateResourceReferenceException;
+import org.xwiki.resource.ResourceReferenceResolver;
+import org.xwiki.resource.ResourceType;
+import org.xwiki.url.ExtendedURL;
+
+/**
+ * Transforms the URLs of the form {@code /idoauth/logo/<hash>} into {@link ProviderLogoResourceReference}s.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component
+@Named("idoauth")
+@Singleton
+public class ProviderLogoResourceReferenceResolver implements ResourceReferenceResolver<ExtendedURL>
+{
+    @Override
+    public ProviderLogoResourceReference resolve(ExtendedURL extendedURL, ResourceType resourceType,
+        Map<String, Object> parameters) throws CreateResourceReferenceException
+    {
+        List<String> segments = extendedURL.getSegments();
+        if (segments.size() != 2 || !ProviderLogoResourceReference.LOGO_SEGMENT.equals(segments.get(0))) {
+            throw new CreateResourceReferenceException(
+                String.format("Invalid IdentityOAuth resource URL [%s].", extendedURL.serialize()));
+        }
+        return new ProviderLogoResourceReference(segments.get(1));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal.resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.url.ExtendedURL;
+import org.xwiki.url.URLNormalizer;
+
+/**
+ * Holds the images referenced by the login-codes of the providers so that they can be served as cacheable resources
+ * instead of being inlined in each login page.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component(roles = ProviderLogoStore.class)
+@Singleton
+public class ProviderLogoStore
+{
+    @Inject
+    @Named("contextpath")
+    private URLNormalizer<ExtendedURL> extendedURLNormalizer;
+
+    private volatile Map<String, ProviderLogo> logos = Collections.emptyMap();
+
+    /**
+     * @param hash the hash of the image as found in its URL.
+     * @return the image or null if no provider references it.
+     */
+    public ProviderLogo getLogo(String hash)
+    {
+        return logos.get(hash);
+    }
+
+    /**
+     * Replaces the set of images served. Called when a new registry of providers is published.
+     *
+     * @param newLogos the images referenced by the current login-codes, indexed by their hash.
+     */
+    public void setLogos(Map<String, ProviderLogo> newLogos)
+    {
+        this.logos = Collections.unmodifiableMap(newLogos);
+    }
+
+    /**
+     * @param logo the image to serve.
+     * @return the URL, relative to the server, at which the image is served.
+     */
+    public String getURL(ProviderLogo logo)
+    {
+        ExtendedURL url = new ExtendedURL(Arrays.asList(ProviderLogoResourceReference.TYPE.getId(),
+            ProviderLogoResourceReference.LOGO_SEGMENT, logo.getHash()));
+        return extendedURLNormalizer.normalize(url).serialize();
+    }
+}
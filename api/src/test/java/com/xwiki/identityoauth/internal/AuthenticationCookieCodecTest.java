@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link AuthenticationCookieCodec}.
+ *
+ * @version $Id$
+ */
+class AuthenticationCookieCodecTest
+{
+    private static final String KEY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private static final String PREVIOUS_KEY = "zyxwvutsrqponmlkjihgfedcba9876543210";
+
+    private static final String USER = "XWiki.alice";
+
+    @Test
+    void roundTrip() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+
+        String encoded = codec.encode(USER);
+        assertFalse(encoded.contains(USER));
+        assertEquals(USER, codec.decode(encoded));
+        // A new initialization vector is used for each value.
+        assertNotEquals(encoded, codec.encode(USER));
+        assertEquals("J\u00f6rg \u00dcnl\u00fc", codec.decode(codec.encode("J\u00f6rg \u00dcnl\u00fc")));
+    }
+
+    @Test
+    void encodedValuesArePrefixedWithTheKeyIdentifier() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+        AuthenticationCookieCodec otherCodec = new AuthenticationCookieCodec(PREVIOUS_KEY, Collections.emptyList(),
+            null, 0);
+
+        String keyId = getKeyId(codec.encode(USER));
+        assertTrue(keyId.matches("[0-9a-f]{8}"));
+        assertEquals(keyId, getKeyId(codec.encode("XWiki.bob")));
+        assertNotEquals(keyId, getKeyId(otherCodec.encode(USER)));
+        // The values of an unknown key are ignored.
+        assertNull(codec.decode(otherCodec.encode(USER)));
+    }
+
+    @Test
+    void valuesOfThePreviousKeysAreDecoded() throws Exception
+    {
+        AuthenticationCookieCodec previousCodec = new AuthenticationCookieCodec(PREVIOUS_KEY, Collections.emptyList(),
+            null, 0);
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.singletonList(PREVIOUS_KEY),
+            null, 0);
+
+        assertEquals(USER, codec.decode(previousCodec.encode(USER)));
+        assertNotEquals(getKeyId(previousCodec.encode(USER)), getKeyId(codec.encode(USER)));
+    }
+
+    @Test
+    void legacyValuesAreDecodedWithTheLegacyKey() throws Exception
+    {
+        String legacyValue = encodeLegacy(USER, KEY);
+
+        long inAnHour = System.currentTimeMillis() + 3600000;
+        assertEquals(USER,
+            new AuthenticationCookieCodec(KEY, Collections.emptyList(), KEY, inAnHour).decode(legacyValue));
+        assertNull(new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, inAnHour).decode(legacyValue));
+        // Once the deadline is passed, the values are rejected.
+        assertNull(new AuthenticationCookieCodec(KEY, Collections.emptyList(), KEY,
+            System.currentTimeMillis() - 1).decode(legacyValue));
+    }
+
+    @Test
+    void plainTextIsNotTakenForAValue() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+
+        assertNull(codec.decode(USER));
+        assertNull(codec.decode("XWikiGuest"));
+    }
+
+    @Test
+    void tamperedValuesAreRejected() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+        String encoded = codec.encode(USER);
+        String keyId = getKeyId(encoded);
+        byte[] bytes = Base64.getUrlDecoder().decode(encoded.substring(keyId.length() + 1));
+        bytes[bytes.length - 1] ^= 1;
+
+        assertThrows(AEADBadTagException.class,
+            () -> codec.decode(keyId + '.' + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes)));
+    }
+
+    @Test
+    void valuesAuthenticatedWithAnotherKeyIdentifierAreRejected() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+        String keyId = getKeyId(codec.encode(USER));
+
+        // Encrypted with the right key but authenticated with another identifier as additional data.
+        byte[] key = MessageDigest.getInstance("SHA-256").digest(KEY.getBytes(StandardCharsets.UTF_8));
+        byte[] iv = new byte[12];
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        cipher.updateAAD("00000000".getBytes(StandardCharsets.US_ASCII));
+        byte[] encrypted = cipher.doFinal(USER.getBytes(StandardCharsets.UTF_8));
+        byte[] value = Arrays.copyOf(iv, iv.length + encrypted.length);
+        System.arraycopy(encrypted, 0, value, iv.length, encrypted.length);
+
+        assertThrows(AEADBadTagException.class,
+            () -> codec.decode(keyId + '.' + Base64.getUrlEncoder().withoutPadding().encodeToString(value)));
+    }
+
+    private String getKeyId(String encoded)
+    {
+        return encoded.substring(0, encoded.indexOf('.'));
+    }
+
+    /**
+     * Encodes a value the way the former versions did.
+     */
+    private String encodeLegacy(String text, String secret) throws Exception
+    {
+        Cipher cipher = Cipher.getInstance("TripleDES");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret.getBytes(), 0, 24, "TripleDES"));
+        return Base64.getEncoder().encodeToString(cipher.doFinal(text.getBytes())).replace('=', '_');
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link CipherPool}.
+ *
+ * @version $Id$
+ */
+class CipherPoolTest
+{
+    private static final String KEY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private static final int THREADS = 16;
+
+    private static final int ROUND_TRIPS = 500;
+
+    @Test
+    void borrowedCiphersAreReused() throws Exception
+    {
+        AtomicInteger created = new AtomicInteger();
+        CipherPool pool = new CipherPool(() -> {
+            created.incrementAndGet();
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        });
+
+        Cipher first = pool.borrow();
+        Cipher second = pool.borrow();
+        assertNotSame(first, second);
+        pool.release(first);
+        assertSame(first, pool.borrow());
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    void concurrentBorrowersNeverShareACipher() throws Exception
+    {
+        CipherPool pool = new CipherPool(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+        Set<Cipher> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        runConcurrently(() -> {
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                Cipher cipher = pool.borrow();
+                assertTrue(inUse.add(cipher), "A cipher was borrowed by two threads at once");
+                Thread.yield();
+                inUse.remove(cipher);
+                pool.release(cipher);
+            }
+            return null;
+        });
+    }
+
+    @Test
+    void concurrentRoundTrips() throws Exception
+    {
+        AuthenticationCookieCodec codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), null, 0);
+
+        runConcurrently(() -> {
+            String prefix = "XWiki.user" + Thread.currentThread().getId() + '-';
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                String text = prefix + i;
+                assertEquals(text, codec.decode(codec.encode(text)));
+            }
+            return null;
+        });
+    }
+
+    private void runConcurrently(Callable<Void> task) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            // Rethrows the failed assertions and the decryption errors of the threads.
+            for (Future<Void> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
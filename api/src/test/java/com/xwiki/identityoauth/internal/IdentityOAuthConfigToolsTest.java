@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the configuration fingerprint of {@link IdentityOAuthConfigTools}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class IdentityOAuthConfigToolsTest
+{
+    private static final String LOGO = "IdentityOAuth.Google@logo.png";
+
+    private static final String LOGIN_CODE = "<img src=\"--image-base64--" + LOGO + "--\"/>";
+
+    @InjectMockComponents
+    private IdentityOAuthConfigTools configTools;
+
+    @Test
+    void fingerprintIsStable()
+    {
+        Map<String, String> reversed = new LinkedHashMap<>();
+        reversed.put("scope", "openid");
+        reversed.put("clientid", "wiki");
+        assertEquals(fingerprint(createConfig()), fingerprint(createConfig()));
+        ProviderConfig reordered = createConfig();
+        reordered.setConfig(reversed);
+        assertEquals(fingerprint(createConfig()), fingerprint(reordered));
+    }
+
+    @Test
+    void fingerprintChangesWithTheConfigurationPage()
+    {
+        ProviderConfig moved = createConfig();
+        moved.setConfigPage("IdentityOAuth.OtherConfiguration");
+        assertNotEquals(fingerprint(createConfig()), fingerprint(moved));
+    }
+
+    @Test
+    void fingerprintChangesWithTheConfigurationMap()
+    {
+        ProviderConfig changed = createConfig();
+        changed.getConfig().put("clientid", "other");
+        assertNotEquals(fingerprint(createConfig()), fingerprint(changed));
+
+        ProviderConfig added = createConfig();
+        added.getConfig().put("secret", "s3cr3t");
+        assertNotEquals(fingerprint(createConfig()), fingerprint(added));
+    }
+
+    @Test
+    void fingerprintChangesWithTheLoginCode()
+    {
+        ProviderConfig changed = createConfig();
+        changed.setLoginCode(LOGIN_CODE + "<span>Google</span>");
+        assertNotEquals(fingerprint(createConfig()), fingerprint(changed));
+
+        ProviderConfig resyntaxed = createConfig();
+        resyntaxed.setLoginCodeSyntax(Syntax.XWIKI_2_0);
+        assertNotEquals(fingerprint(createConfig()), fingerprint(resyntaxed));
+    }
+
+    @Test
+    void fingerprintChangesWithTheLogoVersion()
+    {
+        String first = configTools.computeFingerprint(createConfig(),
+            Collections.singletonMap(LOGO, createAttachment("1.1")));
+        assertEquals(first, configTools.computeFingerprint(createConfig(),
+            Collections.singletonMap(LOGO, createAttachment("1.1"))));
+        assertNotEquals(first, configTools.computeFingerprint(createConfig(),
+            Collections.singletonMap(LOGO, createAttachment("1.2"))));
+        assertNotEquals(first, fingerprint(createConfig()));
+    }
+
+    private String fingerprint(ProviderConfig config)
+    {
+        return configTools.computeFingerprint(config, Collections.emptyMap());
+    }
+
+    private ProviderConfig createConfig()
+    {
+        ProviderConfig config = new ProviderConfig();
+        config.setName("google");
+        config.setConfigPage("IdentityOAuth.GoogleConfiguration");
+        config.setLoginCode(LOGIN_CODE);
+        config.setLoginCodeSyntax(Syntax.XWIKI_2_1);
+        Map<String, String> map = new HashMap<>();
+        map.put("clientid", "wiki");
+        map.put("scope", "openid");
+        config.setConfig(map);
+        return config;
+    }
+
+    private XWikiAttachment createAttachment(String version)
+    {
+        XWikiAttachment attachment = mock(XWikiAttachment.class);
+        when(attachment.getVersion()).thenReturn(version);
+        when(attachment.getLongSize()).thenReturn(1024L);
+        when(attachment.getDate()).thenReturn(new Date(0));
+        return attachment;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import com.nimbusds.jwt.SignedJWT;
+import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthMetadataCache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link IdentityOAuthIdTokenValidator}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class IdentityOAuthIdTokenValidatorTest
+{
+    private static final String ISSUER = "https://login.example.com";
+
+    private static final String JWKS_URI = ISSUER + "/keys";
+
+    private static final String CLIENT_ID = "wiki";
+
+    private static final String KEY_ID = "key1";
+
+    private static final String SUBJECT = "alice";
+
+    private static final long MINUTE = 60000;
+
+    private static RSAKey signingKey;
+
+    @MockComponent
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    @MockComponent
+    private IdentityOAuthMetadataCache metadataCache;
+
+    @InjectMockComponents
+    private IdentityOAuthIdTokenValidator validator;
+
+    @BeforeAll
+    static void generateKey() throws Exception
+    {
+        signingKey = new RSAKeyGenerator(2048).keyID(KEY_ID).generate();
+    }
+
+    @BeforeComponent
+    void configure()
+    {
+        when(xwikiCfg.getProperty("xwiki.idoauth.idToken.clockSkew", 60L)).thenReturn(60L);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        when(metadataCache.getProviderMetadata(ISSUER)).thenReturn(Collections.singletonMap("jwks_uri", JWKS_URI));
+        when(metadataCache.getKey(JWKS_URI, KEY_ID)).thenReturn(signingKey.toPublicJWK());
+    }
+
+    @Test
+    void validToken() throws Exception
+    {
+        Map<String, Object> claims = validator.validate(sign(claims().build()), ISSUER, CLIENT_ID, null);
+
+        assertEquals(SUBJECT, claims.get("sub"));
+        assertEquals(1, validator.getValidatedCount());
+        assertEquals(0, validator.getRejectedCount());
+    }
+
+    @Test
+    void otherIssuer() throws Exception
+    {
+        assertRejected(sign(claims().issuer("https://evil.example.com").build()));
+    }
+
+    @Test
+    void otherAudience() throws Exception
+    {
+        assertRejected(sign(claims().audience("other").build()));
+    }
+
+    @Test
+    void otherAuthorizedParty() throws Exception
+    {
+        JWTClaimsSet.Builder claims = claims().audience(Arrays.asList(CLIENT_ID, "other"));
+        assertRejected(sign(claims.build()));
+        assertRejected(sign(claims.claim("azp", "other").build()));
+        assertEquals(SUBJECT,
+            validator.validate(sign(claims.claim("azp", CLIENT_ID).build()), ISSUER, CLIENT_ID, null).get("sub"));
+    }
+
+    @Test
+    void expiredToken() throws Exception
+    {
+        assertRejected(sign(claims().expirationTime(new Date(System.currentTimeMillis() - 2 * MINUTE)).build()));
+        // The clock differences are tolerated.
+        validator.validate(sign(claims().expirationTime(new Date(System.currentTimeMillis() - MINUTE / 2)).build()),
+            ISSUER, CLIENT_ID, null);
+    }
+
+    @Test
+    void tokenNotValidYet() throws Exception
+    {
+        assertRejected(sign(claims().notBeforeTime(new Date(System.currentTimeMillis() + 2 * MINUTE)).build()));
+        assertRejected(sign(claims().issueTime(new Date(System.currentTimeMillis() + 2 * MINUTE)).build()));
+    }
+
+    @Test
+    void unsignedToken()
+    {
+        assertRejected(new PlainJWT(claims().build()).serialize());
+    }
+
+    @Test
+    void tokenSignedWithTheClientSecret() throws Exception
+    {
+        SignedJWT jwt = new SignedJWT(new JWSHeader(JWSAlgorithm.HS256), claims().build());
+        jwt.sign(new MACSigner("a client secret of at least 256 bits"));
+
+        assertRejected(jwt.serialize());
+    }
+
+    @Test
+    void tokenSignedWithAnotherKey() throws Exception
+    {
+        RSAKey otherKey = new RSAKeyGenerator(2048).keyID(KEY_ID).generate();
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(KEY_ID).build(),
+            claims().build());
+        jwt.sign(new RSASSASigner(otherKey));
+
+        assertRejected(jwt.serialize());
+    }
+
+    @Test
+    void nonce() throws Exception
+    {
+        String idToken = sign(claims().claim("nonce", "n-0S6_WzA2Mj").build());
+
+        assertEquals(SUBJECT, validator.validate(idToken, ISSUER, CLIENT_ID, "n-0S6_WzA2Mj").get("sub"));
+        assertThrows(IdentityOAuthException.class, () -> validator.validate(idToken, ISSUER, CLIENT_ID, "other"));
+        assertThrows(IdentityOAuthException.class,
+            () -> validator.validate(sign(claims().build()), ISSUER, CLIENT_ID, "n-0S6_WzA2Mj"));
+    }
+
+    private void assertRejected(String idToken)
+    {
+        long rejected = validator.getRejectedCount();
+        assertThrows(IdentityOAuthException.class, () -> validator.validate(idToken, ISSUER, CLIENT_ID, null));
+        assertEquals(rejected + 1, validator.getRejectedCount());
+    }
+
+    private JWTClaimsSet.Builder claims()
+    {
+        long now = System.currentTimeMillis();
+        return new JWTClaimsSet.Builder()
+            .issuer(ISSUER)
+            .subject(SUBJECT)
+            .audience(CLIENT_ID)
+            .issueTime(new Date(now))
+            .expirationTime(new Date(now + 10 * MINUTE));
+    }
+
+    private String sign(JWTClaimsSet claims) throws Exception
+    {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(KEY_ID).build(), claims);
+        jwt.sign(new RSASSASigner(signingKey));
+        return jwt.serialize();
+    }
+}
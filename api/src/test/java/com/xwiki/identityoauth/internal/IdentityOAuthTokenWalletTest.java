@@ -0,0 +1,202 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.identityoauth.IdentityOAuthTokens;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link IdentityOAuthTokenWallet}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class IdentityOAuthTokenWalletTest
+{
+    private static final String PROVIDER = "google";
+
+    private static final long HOUR = 3600000;
+
+    @MockComponent
+    @Named("xwikicfg")
+    private ConfigurationSource xwikiCfg;
+
+    @InjectMockComponents
+    private IdentityOAuthTokenWallet tokenWallet;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(xwikiCfg.getProperty("xwiki.idoauth.tokenWallet.size", 10000)).thenReturn(3);
+    }
+
+    @Test
+    void storeAndGet()
+    {
+        store("XWiki.alice", "token", inHours(1));
+
+        IdentityOAuthTokenWallet.WalletEntry entry = tokenWallet.get("XWiki.alice", PROVIDER);
+        assertNotNull(entry);
+        assertEquals("code", entry.getAuthorizationCode());
+        assertEquals("token", entry.getToken());
+        assertNull(tokenWallet.get("XWiki.alice", "github"));
+        assertNull(tokenWallet.get("XWiki.bob", PROVIDER));
+        assertNull(tokenWallet.get(null, PROVIDER));
+    }
+
+    @Test
+    void storeReplacesThePreviousToken()
+    {
+        store("XWiki.alice", "token1", inHours(1));
+        store("XWiki.alice", "token2", inHours(2));
+
+        assertEquals("token2", tokenWallet.get("XWiki.alice", PROVIDER).getToken());
+        assertEquals(1, tokenWallet.getSize());
+    }
+
+    @Test
+    void expiredTokensAreNotServed()
+    {
+        store("XWiki.alice", "token", inHours(0));
+
+        assertNull(tokenWallet.get("XWiki.alice", PROVIDER));
+        assertEquals(0, tokenWallet.getSize());
+    }
+
+    @Test
+    void expiredTokensArePurgedAtStore()
+    {
+        store("XWiki.alice", "token", inHours(0));
+        store("XWiki.bob", "token", inHours(1));
+
+        assertEquals(1, tokenWallet.getSize());
+    }
+
+    @Test
+    void fullWalletEvictsTheTokenExpiringFirst()
+    {
+        store("XWiki.alice", "token", inHours(3));
+        store("XWiki.bob", "token", inHours(1));
+        store("XWiki.carol", "token", null);
+        store("XWiki.dave", "token", inHours(2));
+
+        assertEquals(3, tokenWallet.getSize());
+        assertNull(tokenWallet.get("XWiki.bob", PROVIDER));
+        assertNotNull(tokenWallet.get("XWiki.alice", PROVIDER));
+        assertNotNull(tokenWallet.get("XWiki.carol", PROVIDER));
+        assertNotNull(tokenWallet.get("XWiki.dave", PROVIDER));
+
+        // A replaced token is not evicted in place of the token replacing it.
+        store("XWiki.dave", "token", inHours(4));
+        store("XWiki.erin", "token", inHours(5));
+        assertEquals(3, tokenWallet.getSize());
+        assertNull(tokenWallet.get("XWiki.alice", PROVIDER));
+        assertNotNull(tokenWallet.get("XWiki.dave", PROVIDER));
+    }
+
+    @Test
+    void remove()
+    {
+        store("XWiki.alice", "token", inHours(1));
+        tokenWallet.remove("XWiki.alice", PROVIDER);
+        tokenWallet.remove(null, PROVIDER);
+
+        assertNull(tokenWallet.get("XWiki.alice", PROVIDER));
+        assertEquals(0, tokenWallet.getSize());
+    }
+
+    @Test
+    void replaceToken()
+    {
+        store("XWiki.alice", "token1", inHours(1));
+        IdentityOAuthTokenWallet.WalletEntry entry = tokenWallet.get("XWiki.alice", PROVIDER);
+
+        assertTrue(tokenWallet.replaceToken(entry, new IdentityOAuthTokens("token2", inHours(2), null, null)));
+        assertEquals("token2", tokenWallet.get("XWiki.alice", PROVIDER).getToken());
+        assertEquals("code", tokenWallet.get("XWiki.alice", PROVIDER).getAuthorizationCode());
+        // The refresh-token is kept when no new one is returned.
+        assertEquals("refresh", tokenWallet.get("XWiki.alice", PROVIDER).getRefreshToken());
+        // The entry was replaced meanwhile.
+        assertFalse(tokenWallet.replaceToken(entry, new IdentityOAuthTokens("token3", inHours(3), null, null)));
+        assertEquals("token2", tokenWallet.get("XWiki.alice", PROVIDER).getToken());
+    }
+
+    @Test
+    void replaceTokenWithANewRefreshToken()
+    {
+        tokenWallet.store("XWiki.alice", PROVIDER, "code", new IdentityOAuthTokens("token1", inHours(1), "refresh1",
+            null));
+        IdentityOAuthTokenWallet.WalletEntry entry = tokenWallet.get("XWiki.alice", PROVIDER);
+        assertTrue(entry.isRefreshable());
+
+        assertTrue(tokenWallet.replaceToken(entry, new IdentityOAuthTokens("token2", inHours(2), "refresh2", null)));
+        assertEquals("refresh2", tokenWallet.get("XWiki.alice", PROVIDER).getRefreshToken());
+    }
+
+    @Test
+    void tokensWithoutRefreshTokenAreNotRefreshable()
+    {
+        tokenWallet.store("XWiki.alice", PROVIDER, "code", new IdentityOAuthTokens("token", inHours(1), null, null));
+
+        assertFalse(tokenWallet.get("XWiki.alice", PROVIDER).isRefreshable());
+    }
+
+    @Test
+    void getEntriesExpiringBefore()
+    {
+        store("XWiki.alice", "token", inHours(2));
+        store("XWiki.bob", "token", inHours(1));
+        store("XWiki.carol", "token", inHours(3));
+
+        List<IdentityOAuthTokenWallet.WalletEntry> expiring =
+            tokenWallet.getEntriesExpiringBefore(System.currentTimeMillis() + 2 * HOUR + 60000);
+        assertEquals(2, expiring.size());
+        assertEquals("XWiki.bob", expiring.get(0).getUser());
+        assertEquals("XWiki.alice", expiring.get(1).getUser());
+    }
+
+    private void store(String user, String token, Date expiry)
+    {
+        tokenWallet.store(user, PROVIDER, "code", new IdentityOAuthTokens(token, expiry, "refresh", null));
+    }
+
+    private Date inHours(int hours)
+    {
+        return new Date(System.currentTimeMillis() + hours * HOUR);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.util.Locale;
+
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.mockito.Mockito;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Helpers to build the components under benchmark outside of an XWiki instance: the dependencies are injected in the
+ * fields, as the component manager would do, and the XWiki services are replaced by in-memory stubs.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+final class BenchmarkComponents
+{
+    static final String MAIN_WIKI = "xwiki";
+
+    private BenchmarkComponents()
+    {
+    }
+
+    /**
+     * Sets a field of a component, whatever its visibility.
+     *
+     * @param component the component.
+     * @param field     the name of the field.
+     * @param value     the value to inject.
+     */
+    static void inject(Object component, String field, Object value)
+    {
+        try {
+            FieldUtils.writeField(component, field, value, true);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot inject " + field, e);
+        }
+    }
+
+    /**
+     * Injects the logger, which all the components have.
+     *
+     * @param component the component.
+     * @param <T>       the type of the component.
+     * @return the component.
+     */
+    static <T> T withLogger(T component)
+    {
+        inject(component, "log", NOPLogger.NOP_LOGGER);
+        return component;
+    }
+
+    /**
+     * @param wiki the stub of the XWiki object, can be null.
+     * @return a context of the main wiki, in English.
+     */
+    static XWikiContext createContext(XWiki wiki)
+    {
+        XWikiContext context = Mockito.mock(XWikiContext.class);
+        Mockito.when(context.getLocale()).thenReturn(Locale.ENGLISH);
+        Mockito.when(context.getMainXWiki()).thenReturn(MAIN_WIKI);
+        Mockito.when(context.getWikiId()).thenReturn(MAIN_WIKI);
+        Mockito.when(context.getWiki()).thenReturn(wiki);
+        return context;
+    }
+
+    /**
+     * @param context the context to provide.
+     * @return a provider always returning the given context.
+     */
+    static Provider<XWikiContext> provide(XWikiContext context)
+    {
+        return () -> context;
+    }
+
+    /**
+     * Parses the references written as {@code Space.Page} or {@code Space.Page@file}, which is enough for the
+     * benchmarks.
+     *
+     * @param representation the reference as written in the configuration.
+     * @return the document reference in the main wiki.
+     */
+    static DocumentReference resolveDocument(String representation)
+    {
+        String page = representation.contains("@") ? representation.substring(0, representation.indexOf('@'))
+            : representation;
+        page = page.contains(":") ? page.substring(page.indexOf(':') + 1) : page;
+        int dot = page.lastIndexOf('.');
+        return new DocumentReference(MAIN_WIKI, dot > 0 ? page.substring(0, dot) : "Main", page.substring(dot + 1));
+    }
+
+    /**
+     * @param representation the reference written as {@code Space.Page@file}.
+     * @return the attachment reference in the main wiki.
+     */
+    static AttachmentReference resolveAttachment(String representation)
+    {
+        return new AttachmentReference(representation.substring(representation.indexOf('@') + 1),
+            resolveDocument(representation));
+    }
+
+    /**
+     * @param reference a reference.
+     * @return the reference serialized without its wiki, as the "local" serializer does.
+     */
+    static String serializeLocal(EntityReference reference)
+    {
+        EntityReference document = reference.extractReference(EntityType.DOCUMENT);
+        EntityReference space = document.extractReference(EntityType.SPACE);
+        return space.getName() + '.' + document.getName();
+    }
+
+    /**
+     * @return the reference of the main wiki.
+     */
+    static WikiReference mainWiki()
+    {
+        return new WikiReference(MAIN_WIKI);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the codec of the authentication cookie of {@link CookieAuthenticationPersistence} with the TripleDES
+ * encryption used by the former versions, reproduced here as it was written (shared ECB ciphers, Base64 padding
+ * replaced by underscores).
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CookieCodecBenchmark
+{
+    private static final String KEY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private static final String USER = "XWiki.JohnDoe";
+
+    private AuthenticationCookieCodec codec;
+
+    private String encoded;
+
+    private String legacyEncoded;
+
+    private Cipher formerEncryptionCipher;
+
+    private Cipher formerDecryptionCipher;
+
+    /**
+     * Creates the codecs and the values to decode.
+     *
+     * @throws Exception if the ciphers cannot be created.
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        codec = new AuthenticationCookieCodec(KEY, Collections.emptyList(), KEY, Long.MAX_VALUE);
+        encoded = codec.encode(USER);
+
+        SecretKeySpec key = new SecretKeySpec(KEY.getBytes(), 0, 24, "TripleDES");
+        formerEncryptionCipher = Cipher.getInstance("TripleDES");
+        formerEncryptionCipher.init(Cipher.ENCRYPT_MODE, key);
+        formerDecryptionCipher = Cipher.getInstance("TripleDES");
+        formerDecryptionCipher.init(Cipher.DECRYPT_MODE, key);
+        legacyEncoded = formerEncode(USER);
+    }
+
+    /**
+     * @return the cookie value of the user.
+     * @throws Exception if the encryption fails.
+     */
+    @Benchmark
+    public String encode() throws Exception
+    {
+        return codec.encode(USER);
+    }
+
+    /**
+     * @return the user of the cookie value.
+     * @throws Exception if the decryption fails.
+     */
+    @Benchmark
+    public String decode() throws Exception
+    {
+        return codec.decode(encoded);
+    }
+
+    /**
+     * @return the user of a cookie value written by a former version.
+     * @throws Exception if the decryption fails.
+     */
+    @Benchmark
+    public String decodeLegacy() throws Exception
+    {
+        return codec.decode(legacyEncoded);
+    }
+
+    /**
+     * @return the cookie value of the user, as the former versions encrypted it.
+     * @throws Exception if the encryption fails.
+     */
+    @Benchmark
+    public String formerEncode() throws Exception
+    {
+        return formerEncode(USER);
+    }
+
+    /**
+     * @return the user of the cookie value, as the former versions decrypted it.
+     * @throws Exception if the decryption fails.
+     */
+    @Benchmark
+    public String formerDecode() throws Exception
+    {
+        return new String(formerDecryptionCipher.doFinal(
+            Base64.decodeBase64(legacyEncoded.replaceAll("_", "=").getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    private String formerEncode(String text) throws Exception
+    {
+        return new String(Base64.encodeBase64(formerEncryptionCipher.doFinal(text.getBytes()))).replaceAll("=", "_");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.rendering.converter.Converter;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
+
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+
+/**
+ * Measures the rendering of the login-codes shown on the login page, as done by
+ * {@link DefaultIdentityOAuthManager#renderLoginCodes()}: once the renderings are kept in the registry, and when
+ * they have to be made (first view after a reload). The wiki rendering itself is stubbed, so the figures are the
+ * overhead of the application around it.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginCodeRendererBenchmark
+{
+    @Param({ "2", "8" })
+    private int providerCount;
+
+    private IdentityOAuthLoginCodeRenderer renderer;
+
+    private List<ProviderConfig> configs;
+
+    private ProviderRegistry registry;
+
+    /**
+     * Builds the renderer and a registry whose renderings are kept.
+     *
+     * @throws Exception if the stubs cannot be built.
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        Converter converter = Mockito.mock(Converter.class);
+        Mockito.doAnswer(invocation -> {
+            invocation.<WikiPrinter>getArgument(3).print("<a class=\"idoauth-login\" href=\"#\">Log in</a>");
+            return null;
+        }).when(converter).convert(ArgumentMatchers.any(Reader.class), ArgumentMatchers.any(Syntax.class),
+            ArgumentMatchers.any(Syntax.class), ArgumentMatchers.any(WikiPrinter.class));
+
+        renderer = BenchmarkComponents.withLogger(new IdentityOAuthLoginCodeRenderer());
+        BenchmarkComponents.inject(renderer, "converter", converter);
+        BenchmarkComponents.inject(renderer, "contextProvider",
+            BenchmarkComponents.provide(BenchmarkComponents.createContext(null)));
+
+        IdentityOAuthProvider provider = Mockito.mock(IdentityOAuthProvider.class);
+        Mockito.when(provider.isReady()).thenReturn(true);
+        configs = new ArrayList<>();
+        for (int i = 0; i < providerCount; i++) {
+            ProviderConfig config = new ProviderConfig();
+            config.setName("provider" + i);
+            config.setLoginCodeSyntax(Syntax.XWIKI_2_1);
+            config.setPreparedLoginCode("{{html}}<a class=\"idoauth-login\" href=\"#\">Log in</a>{{/html}}");
+            config.setProvider(provider);
+            configs.add(config);
+        }
+        registry = new ProviderRegistry(configs, null);
+        renderer.render(registry);
+    }
+
+    /**
+     * @return the login-codes, as rendered at each view of the login page.
+     */
+    @Benchmark
+    public List<String> renderKept()
+    {
+        return renderer.render(registry);
+    }
+
+    /**
+     * @return the login-codes, as rendered at the first view after a reload.
+     */
+    @Benchmark
+    public List<String> renderAfterReload()
+    {
+        return renderer.render(new ProviderRegistry(configs, null));
+    }
+}
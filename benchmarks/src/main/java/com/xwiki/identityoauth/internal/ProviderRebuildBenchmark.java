@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.AttachmentReferenceResolver;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.url.ExtendedURL;
+import org.xwiki.url.URLNormalizer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseProperty;
+import com.xpn.xwiki.objects.IntegerProperty;
+import com.xpn.xwiki.objects.LargeStringProperty;
+import com.xpn.xwiki.objects.StringProperty;
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+import com.xwiki.identityoauth.internal.resource.ProviderLogoStore;
+
+/**
+ * Measures the reload of the provider configurations by
+ * {@link IdentityOAuthConfigTools#loadAndRebuildProviders(List)}, against an in-memory store answering its queries:
+ * when nothing changed (the providers are carried over) and when every provider has to be initialized again, which
+ * includes the substitution of the image markers of the login-codes.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderRebuildBenchmark
+{
+    private static final String SYNTAX = "xwiki/2.1";
+
+    private static final String LOGO_PAGE = "IdentityOAuth.Logos";
+
+    @Param({ "2", "8" })
+    private int providerCount;
+
+    private IdentityOAuthConfigTools configTools;
+
+    private List<ProviderConfig> previousConfigs;
+
+    /**
+     * Builds the configuration tools over an in-memory store holding the provider configurations.
+     *
+     * @throws Exception if the stubs cannot be built.
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        List<Object> configPages = new ArrayList<>();
+        List<Object[]> providerRows = new ArrayList<>();
+        List<Object[]> configurationRows = new ArrayList<>();
+        List<Object[]> attachmentRows = new ArrayList<>();
+        Map<String, IdentityOAuthProvider> providers = new HashMap<>();
+        XWikiDocument logoDocument = new XWikiDocument(BenchmarkComponents.resolveDocument(LOGO_PAGE));
+        for (int i = 0; i < providerCount; i++) {
+            String name = "provider" + i;
+            String providerPage = "IdentityOAuth." + name;
+            String configPage = "IdentityOAuth." + name + "Config";
+            String logo = LOGO_PAGE + '@' + name + ".png";
+            configPages.add(configPage);
+            providerRows.add(new Object[] { providerPage, SYNTAX, 0, property("providerHint", name) });
+            providerRows.add(new Object[] { providerPage, SYNTAX, 0, integerProperty("active", 1) });
+            providerRows.add(new Object[] { providerPage, SYNTAX, 0, integerProperty("orderHint", i) });
+            providerRows.add(new Object[] { providerPage, SYNTAX, 0, property("configurationObjectsPage",
+                configPage) });
+            LargeStringProperty loginTemplate = new LargeStringProperty();
+            loginTemplate.setName("loginTemplate");
+            loginTemplate.setValue("{{html}}<a href=\"#\" class=\"-PROVIDER-\"><img src=\""
+                + IdentityOAuthConstants.BASE64_MARKER + logo + "--\"/></a>{{/html}}");
+            providerRows.add(new Object[] { providerPage, SYNTAX, 0, loginTemplate });
+            configurationRows.add(new Object[] { configPage, property("clientid", "client-" + i) });
+            configurationRows.add(new Object[] { configPage, property("secret", "secret-" + i) });
+            configurationRows.add(new Object[] { configPage, property("redirectUrl", "https://wiki/login") });
+
+            XWikiAttachment attachment = new XWikiAttachment(logoDocument, name + ".png");
+            attachment.setContent(new ByteArrayInputStream(new byte[2048]));
+            attachment.setMimeType("image/png");
+            attachment.setDate(new Date());
+            logoDocument.setAttachment(attachment);
+            attachmentRows.add(new Object[] { LOGO_PAGE, attachment });
+
+            providers.put(name, Mockito.mock(IdentityOAuthProvider.class));
+        }
+
+        QueryManager queryManager = Mockito.mock(QueryManager.class);
+        Mockito.when(queryManager.createQuery(Mockito.anyString(), Mockito.anyString())).thenAnswer(invocation -> {
+            String statement = invocation.getArgument(0);
+            List<?> rows;
+            if (statement.startsWith("from doc.object")) {
+                rows = configPages;
+            } else if (statement.contains("XWikiAttachment")) {
+                rows = attachmentRows;
+            } else if (statement.contains("(:pages)")) {
+                rows = configurationRows;
+            } else {
+                rows = providerRows;
+            }
+            return query(rows);
+        });
+
+        XWiki wiki = Mockito.mock(XWiki.class);
+        XWikiContext context = BenchmarkComponents.createContext(wiki);
+        Mockito.when(wiki.getDocument(Mockito.any(EntityReference.class), Mockito.any(XWikiContext.class)))
+            .thenReturn(logoDocument);
+
+        ComponentManager componentManager = Mockito.mock(ComponentManager.class, invocation ->
+            "getInstance".equals(invocation.getMethod().getName()) ? providers.get(invocation.getArgument(1)) : null);
+
+        URLNormalizer<ExtendedURL> urlNormalizer = Mockito.mock(URLNormalizer.class, invocation -> {
+            List<String> segments = new ArrayList<>(Arrays.asList("xwiki"));
+            segments.addAll(invocation.<ExtendedURL>getArgument(0).getSegments());
+            return new ExtendedURL(segments);
+        });
+        ProviderLogoStore logoStore = new ProviderLogoStore();
+        BenchmarkComponents.inject(logoStore, "extendedURLNormalizer", urlNormalizer);
+
+        configTools = BenchmarkComponents.withLogger(new IdentityOAuthConfigTools());
+        BenchmarkComponents.inject(configTools, "contextProvider", BenchmarkComponents.provide(context));
+        BenchmarkComponents.inject(configTools, "queryManager", queryManager);
+        BenchmarkComponents.inject(configTools, "documentResolver", Mockito.mock(DocumentReferenceResolver.class,
+            invocation -> BenchmarkComponents.resolveDocument(invocation.getArgument(0))));
+        BenchmarkComponents.inject(configTools, "attachmentResolver", Mockito.mock(AttachmentReferenceResolver.class,
+            invocation -> BenchmarkComponents.resolveAttachment(invocation.getArgument(0))));
+        BenchmarkComponents.inject(configTools, "localSerializer", Mockito.mock(EntityReferenceSerializer.class,
+            invocation -> BenchmarkComponents.serializeLocal(invocation.getArgument(0))));
+        BenchmarkComponents.inject(configTools, "componentManager", componentManager);
+        BenchmarkComponents.inject(configTools, "logoStore", logoStore);
+
+        previousConfigs = configTools.loadAndRebuildProviders(Collections.emptyList());
+    }
+
+    /**
+     * @return the configurations reloaded while nothing changed.
+     */
+    @Benchmark
+    public List<ProviderConfig> rebuildUnchanged()
+    {
+        return configTools.loadAndRebuildProviders(previousConfigs);
+    }
+
+    /**
+     * @return the configurations reloaded with all the providers initialized again.
+     */
+    @Benchmark
+    public List<ProviderConfig> rebuildAll()
+    {
+        return configTools.loadAndRebuildProviders(Collections.emptyList());
+    }
+
+    private static Query query(List<?> rows)
+    {
+        return Mockito.mock(Query.class, invocation ->
+            "execute".equals(invocation.getMethod().getName()) ? rows : invocation.getMock());
+    }
+
+    private static BaseProperty<?> property(String name, String value)
+    {
+        StringProperty property = new StringProperty();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+
+    private static BaseProperty<?> integerProperty(String name, int value)
+    {
+        IntegerProperty property = new IntegerProperty();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xwiki.identityoauth.IdentityOAuthTokens;
+
+/**
+ * Measures the state kept per session and per user: the serialization of the {@link IdentityOAuthSessionInfo}, which
+ * is what a replicated or persisted session pays at each request, and the concurrent accesses to the
+ * {@link IdentityOAuthTokenWallet}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionInfoBenchmark
+{
+    private static final String USER_PREFIX = "XWiki.User";
+
+    private static final String PROVIDER = "provider";
+
+    @Param({ "1000", "10000" })
+    private int userCount;
+
+    private IdentityOAuthSessionInfo sessionInfo;
+
+    private IdentityOAuthTokenWallet tokenWallet;
+
+    /**
+     * Builds a session state as left by a completed OAuth dialog and a wallet holding the tokens of all the users.
+     */
+    @Setup
+    public void setUp()
+    {
+        sessionInfo = new IdentityOAuthSessionInfo();
+        sessionInfo.setProviderAuthorizationRunning(PROVIDER);
+        sessionInfo.setWalletOwner(USER_PREFIX + 0);
+        sessionInfo.setXredirect("/xwiki/bin/view/Main/");
+
+        // The configuration answers the default value of each property.
+        ConfigurationSource configuration = Mockito.mock(ConfigurationSource.class, invocation ->
+            invocation.getArguments().length == 2 ? invocation.getArgument(1) : null);
+        tokenWallet = BenchmarkComponents.withLogger(new IdentityOAuthTokenWallet());
+        BenchmarkComponents.inject(tokenWallet, "xwikiCfg", configuration);
+        tokenWallet.initialize();
+        Date expiry = new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < userCount; i++) {
+            tokenWallet.store(USER_PREFIX + i, PROVIDER, "code-" + i,
+                new IdentityOAuthTokens("token-" + i, expiry, "refresh-" + i, null));
+        }
+    }
+
+    /**
+     * @return the size in bytes of the serialized session state.
+     * @throws IOException if the serialization fails.
+     */
+    @Benchmark
+    public int serializeSessionInfo() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(sessionInfo);
+        }
+        return bytes.size();
+    }
+
+    /**
+     * @return the token of a random user, read concurrently.
+     */
+    @Benchmark
+    @Threads(4)
+    public Object getToken()
+    {
+        return tokenWallet.get(USER_PREFIX + ThreadLocalRandom.current().nextInt(userCount), PROVIDER);
+    }
+
+    /**
+     * Replaces the token of a random user while others are read, as at the OAuth returns.
+     */
+    @Benchmark
+    @Threads(4)
+    public void storeToken()
+    {
+        int user = ThreadLocalRandom.current().nextInt(userCount);
+        tokenWallet.store(USER_PREFIX + user, PROVIDER, "code-" + user, new IdentityOAuthTokens("token-" + user,
+            new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)), "refresh-" + user, null));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.oidc.auth.store.OIDCUserStore;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+
+/**
+ * Measures the resolution of the user of an identity at the OAuth return: through the identity cache of
+ * {@link IdentityOAuthUserTools}, and through the OIDC user store then the email query that it avoids. The store and
+ * the query answer from memory, so the differences measured are a lower bound of the ones seen against a database.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserLookupBenchmark
+{
+    private static final int USER_COUNT = 1000;
+
+    private static final String ISSUER = "https://issuer.example.com";
+
+    private IdentityOAuthUserTools userTools;
+
+    private MethodHandle getCachedUser;
+
+    private MethodHandle findExistingUser;
+
+    private final List<String> cacheKeys = new ArrayList<>();
+
+    private final List<IdentityOAuthProvider.AbstractIdentityDescription> storedIdentities = new ArrayList<>();
+
+    private final List<IdentityOAuthProvider.AbstractIdentityDescription> emailIdentities = new ArrayList<>();
+
+    /**
+     * Builds the user tools over in-memory stubs of the cache, the OIDC user store and the query manager, knowing
+     * {@value #USER_COUNT} users.
+     *
+     * @throws Throwable if the stubs cannot be built or the cached lookup does not find the users in the cache.
+     */
+    @Setup
+    public void setUp() throws Throwable
+    {
+        Map<String, XWikiDocument> usersBySubject = new ConcurrentHashMap<>();
+        Map<DocumentReference, XWikiDocument> usersByReference = new ConcurrentHashMap<>();
+        Map<String, Object[]> emailRows = new ConcurrentHashMap<>();
+        for (int i = 0; i < USER_COUNT; i++) {
+            XWikiDocument userDoc = new XWikiDocument(new DocumentReference(BenchmarkComponents.MAIN_WIKI, "XWiki",
+                "User" + i));
+            userDoc.setNew(false);
+            usersBySubject.put("subject-" + i, userDoc);
+            usersByReference.put(userDoc.getDocumentReference(), userDoc);
+            emailRows.put("user" + i + "@example.com", new Object[] { "XWiki.User" + i, "user" + i + "@example.com" });
+
+            storedIdentities.add(identity("subject-" + i, "user" + i + "@example.com"));
+            // Identities unknown to the OIDC store, found back by their email (written with another case).
+            emailIdentities.add(identity("other-" + i, "User" + i + "@Example.com"));
+        }
+
+        OIDCUserStore oidcUserStore = Mockito.mock(OIDCUserStore.class);
+        Mockito.when(oidcUserStore.searchDocument(Mockito.anyString(), Mockito.anyString()))
+            .thenAnswer(invocation -> usersBySubject.get(invocation.<String>getArgument(1)));
+
+        QueryManager queryManager = Mockito.mock(QueryManager.class);
+        Mockito.when(queryManager.createQuery(Mockito.anyString(), Mockito.anyString())).thenAnswer(invocation -> {
+            List<Object[]> rows = new ArrayList<>();
+            return Mockito.mock(Query.class, queryInvocation -> {
+                if ("bindValue".equals(queryInvocation.getMethod().getName())) {
+                    // Only the rows matching the bound emails, as stored, are returned.
+                    for (Object email : queryInvocation.<List<?>>getArgument(1)) {
+                        Object[] row = emailRows.get(email);
+                        if (row != null) {
+                            rows.add(row);
+                        }
+                    }
+                } else if ("execute".equals(queryInvocation.getMethod().getName())) {
+                    return rows;
+                }
+                return queryInvocation.getMock();
+            });
+        });
+
+        XWiki wiki = Mockito.mock(XWiki.class);
+        Mockito.when(wiki.getDocument(Mockito.any(DocumentReference.class), Mockito.any(XWikiContext.class)))
+            .thenAnswer(invocation -> usersByReference.get(invocation.<DocumentReference>getArgument(0)));
+        XWikiContext context = BenchmarkComponents.createContext(wiki);
+
+        Map<String, DocumentReference> cachedReferences = new ConcurrentHashMap<>();
+        Cache<DocumentReference> cache = Mockito.mock(Cache.class);
+        Mockito.when(cache.get(Mockito.anyString()))
+            .thenAnswer(invocation -> cachedReferences.get(invocation.<String>getArgument(0)));
+        Mockito.doAnswer(invocation -> cachedReferences.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(cache).set(Mockito.anyString(), Mockito.any(DocumentReference.class));
+        CacheManager cacheManager = Mockito.mock(CacheManager.class);
+        Mockito.when(cacheManager.<DocumentReference>createNewCache(Mockito.any(CacheConfiguration.class)))
+            .thenReturn(cache);
+
+        ConfigurationSource configuration = Mockito.mock(ConfigurationSource.class, invocation ->
+            invocation.getArguments().length == 2 ? invocation.getArgument(1) : null);
+
+        userTools = BenchmarkComponents.withLogger(new IdentityOAuthUserTools());
+        BenchmarkComponents.inject(userTools, "contextProvider", BenchmarkComponents.provide(context));
+        BenchmarkComponents.inject(userTools, "queryManager", queryManager);
+        BenchmarkComponents.inject(userTools, "userResolver", Mockito.mock(DocumentReferenceResolver.class,
+            invocation -> BenchmarkComponents.resolveDocument(invocation.getArgument(0))));
+        BenchmarkComponents.inject(userTools, "serializer", Mockito.mock(EntityReferenceSerializer.class,
+            invocation -> BenchmarkComponents.serializeLocal(invocation.getArgument(0))));
+        BenchmarkComponents.inject(userTools, "oidcUserStore", oidcUserStore);
+        BenchmarkComponents.inject(userTools, "cacheManager", cacheManager);
+        BenchmarkComponents.inject(userTools, "xwikiCfg", configuration);
+        userTools.initialize();
+
+        getCachedUser = privateMethod("getCachedUser", String.class);
+        findExistingUser = privateMethod("findExistingUser", IdentityOAuthProvider.AbstractIdentityDescription.class);
+        // The keys are built by the user tools themselves so that they follow any change of their format.
+        MethodHandle getUserCacheKey = privateMethod("getUserCacheKey", String.class, String.class, String.class);
+        for (int i = 0; i < USER_COUNT; i++) {
+            String cacheKey =
+                (String) getUserCacheKey.invoke(userTools, context.getWikiId(), ISSUER, "subject-" + i);
+            cacheKeys.add(cacheKey);
+            cache.set(cacheKey, usersBySubject.get("subject-" + i).getDocumentReference());
+        }
+        if (getCachedUser.invoke(userTools, cacheKeys.get(0)) == null) {
+            throw new IllegalStateException("The cached lookup does not find the users in the cache.");
+        }
+    }
+
+    /**
+     * @return the user of a random identity, found in the identity cache.
+     * @throws Throwable if the lookup fails.
+     */
+    @Benchmark
+    @Threads(4)
+    public Object lookupCached() throws Throwable
+    {
+        return getCachedUser.invoke(userTools, cacheKeys.get(ThreadLocalRandom.current().nextInt(USER_COUNT)));
+    }
+
+    /**
+     * @return the user of a random identity, found by the OIDC user store.
+     * @throws Throwable if the lookup fails.
+     */
+    @Benchmark
+    @Threads(4)
+    public Object lookupInStore() throws Throwable
+    {
+        return findExistingUser.invoke(userTools,
+            storedIdentities.get(ThreadLocalRandom.current().nextInt(USER_COUNT)));
+    }
+
+    /**
+     * @return the user of a random identity, found by its email.
+     * @throws Throwable if the lookup fails.
+     */
+    @Benchmark
+    @Threads(4)
+    public Object lookupByEmail() throws Throwable
+    {
+        return findExistingUser.invoke(userTools,
+            emailIdentities.get(ThreadLocalRandom.current().nextInt(USER_COUNT)));
+    }
+
+    private static IdentityOAuthProvider.AbstractIdentityDescription identity(String subject, String email)
+    {
+        IdentityOAuthProvider.AbstractIdentityDescription id = new IdentityOAuthProvider.AbstractIdentityDescription()
+        {
+            @Override
+            public String getIssuerURL()
+            {
+                return ISSUER;
+            }
+        };
+        id.internalId = subject;
+        id.emails.add(email);
+        return id;
+    }
+
+    private static MethodHandle privateMethod(String name, Class<?>... parameterTypes) throws Exception
+    {
+        Method method = IdentityOAuthUserTools.class.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+}
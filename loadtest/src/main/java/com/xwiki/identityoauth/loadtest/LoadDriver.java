@@ -0,0 +1,286 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.loadtest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs simulated logins against a test instance, each made of the full round-trip of a browser: the start of the
+ * OAuth dialog on the login page ({@code processOAuthStart}), the authorization at the {@link MockAuthorizationServer},
+ * the OAuth return on the login page ({@code processOAuthReturn}, which exchanges the code, fetches the identity and
+ * resolves the user) and the landing page, where the user is logged in. The latency percentiles and the throughput of
+ * each phase are reported at the end.
+ * <p>
+ * The test instance needs this jar in its {@code WEB-INF/lib} and an active IdentityOAuth provider with the hint
+ * {@code loadtest} whose configuration page holds the {@code serverUrl} of the mock server and the
+ * {@code redirectUrl} of the login page. The settings are, with their defaults:
+ * <ul>
+ * <li>{@code --xwiki=http://localhost:8080/xwiki}: the URL of the test instance;</li>
+ * <li>{@code --provider=loadtest}: the hint of the provider;</li>
+ * <li>{@code --rounds=5000}, {@code --warmup=500}, {@code --concurrency=32}: the number of measured and of warm-up
+ * round-trips, and how many run at once;</li>
+ * <li>{@code --users=1000}: the number of distinct users logging in, so that some logins create users and the others
+ * update them;</li>
+ * <li>{@code --mock.external}: to use a mock server started separately instead of the embedded one, and the settings
+ * of the mock server, see {@link LoadTestSettings}.</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public final class LoadDriver
+{
+    private static final String[] PHASES = { "start", "authorize", "return", "landing", "total" };
+
+    private static final int START = 0;
+
+    private static final int AUTHORIZE = 1;
+
+    private static final int RETURN = 2;
+
+    private static final int LANDING = 3;
+
+    private static final int TOTAL = 4;
+
+    private static final String LOCATION = "Location";
+
+    private final HttpClient httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(30)).build();
+
+    private final String xwikiUrl;
+
+    private final String providerHint;
+
+    private final int userCount;
+
+    private final PhaseStatistics[] statistics = new PhaseStatistics[PHASES.length];
+
+    private final Map<String, AtomicLong> failures = new LinkedHashMap<>();
+
+    private LoadDriver(LoadTestSettings settings, int rounds)
+    {
+        this.xwikiUrl = settings.get("xwiki", "http://localhost:8080/xwiki");
+        this.providerHint = settings.get("provider", "loadtest");
+        this.userCount = settings.getInt("users", 1000);
+        for (int i = 0; i < PHASES.length; i++) {
+            statistics[i] = new PhaseStatistics(rounds);
+            failures.put(PHASES[i], new AtomicLong());
+        }
+    }
+
+    /**
+     * @param args the settings, see above.
+     * @throws Exception if the load test cannot be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        LoadTestSettings settings = new LoadTestSettings(args);
+        MockAuthorizationServer server = null;
+        if (!Boolean.parseBoolean(settings.get("mock.external", "false"))) {
+            server = new MockAuthorizationServer(settings);
+            server.start();
+            System.out.println("Mock OAuth server listening at " + server.getURL());
+        }
+        int concurrency = settings.getInt("concurrency", 32);
+        try {
+            int warmup = settings.getInt("warmup", 500);
+            if (warmup > 0) {
+                System.out.println("Warming up with " + warmup + " logins...");
+                new LoadDriver(settings, warmup).run(warmup, concurrency);
+            }
+            int rounds = settings.getInt("rounds", 5000);
+            System.out.println("Running " + rounds + " logins, " + concurrency + " at once...");
+            LoadDriver driver = new LoadDriver(settings, rounds);
+            long elapsed = driver.run(rounds, concurrency);
+            driver.report(elapsed);
+            if (server != null) {
+                for (Map.Entry<String, long[]> counter : server.getCounters().entrySet()) {
+                    System.out.printf("mock %-10s requests=%d injected-errors=%d%n", counter.getKey(),
+                        counter.getValue()[0], counter.getValue()[1]);
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private long run(int rounds, int concurrency) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            executor.execute(this::runRoundTrip);
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        return System.nanoTime() - start;
+    }
+
+    private void runRoundTrip()
+    {
+        Map<String, String> cookies = new LinkedHashMap<>();
+        String user = "user" + ThreadLocalRandom.current().nextInt(userCount);
+        String loginUrl = xwikiUrl + "/bin/login/XWiki/XWikiLogin";
+        String landingUrl = xwikiUrl + "/bin/view/Main/";
+        int phase = START;
+        long roundStart = System.nanoTime();
+        try {
+            String authorizeUrl = step(phase, loginUrl + "?identityOAuth=start&provider=" + encode(providerHint)
+                + "&browserLocation=" + encode(loginUrl) + "&xredirect=" + encode(landingUrl), cookies);
+            phase = AUTHORIZE;
+            String returnUrl = step(phase, authorizeUrl + "&login_hint=" + encode(user), cookies);
+            phase = RETURN;
+            String location = step(phase, returnUrl, cookies);
+            phase = LANDING;
+            long landingStart = System.nanoTime();
+            // The landing page may redirect to the page initially requested.
+            for (int redirects = 0; location != null && redirects < 3; redirects++) {
+                location = request(URI.create(returnUrl).resolve(location).toString(), cookies);
+            }
+            statistics[LANDING].record(System.nanoTime() - landingStart);
+            statistics[TOTAL].record(System.nanoTime() - roundStart);
+        } catch (Exception e) {
+            failures.get(PHASES[phase]).incrementAndGet();
+            failures.get(PHASES[TOTAL]).incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs a request expected to be redirected and records its duration.
+     *
+     * @return the location of the redirection.
+     */
+    private String step(int phase, String url, Map<String, String> cookies) throws Exception
+    {
+        long start = System.nanoTime();
+        String location = request(url, cookies);
+        if (location == null) {
+            throw new IllegalStateException("No redirection at the " + PHASES[phase] + " phase.");
+        }
+        statistics[phase].record(System.nanoTime() - start);
+        return location;
+    }
+
+    /**
+     * Runs a request as a browser would, with the cookies of the round-trip.
+     *
+     * @return the location of the redirection, or null if the response is not a redirection.
+     */
+    private String request(String url, Map<String, String> cookies) throws Exception
+    {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(60));
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            request.header("Cookie", header.toString());
+        }
+        HttpResponse<Void> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.discarding());
+        for (String setCookie : response.headers().allValues("Set-Cookie")) {
+            String pair = setCookie.split(";", 2)[0];
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                cookies.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+            }
+        }
+        if (response.statusCode() >= 400) {
+            throw new IllegalStateException(url + " answered with status " + response.statusCode());
+        }
+        return response.statusCode() / 100 == 3 ? response.headers().firstValue(LOCATION).orElse(null) : null;
+    }
+
+    private void report(long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-10s %8s %8s %10s %10s %10s%n", "phase", "ok", "failed", "p50 (ms)", "p99 (ms)",
+            "per second");
+        for (int i = 0; i < PHASES.length; i++) {
+            long[] latencies = statistics[i].getSortedLatencies();
+            System.out.printf("%-10s %8d %8d %10.1f %10.1f %10.1f%n", PHASES[i], latencies.length,
+                failures.get(PHASES[i]).get(), percentile(latencies, 0.50), percentile(latencies, 0.99),
+                latencies.length / seconds);
+        }
+    }
+
+    private static double percentile(long[] sortedLatencies, double rank)
+    {
+        if (sortedLatencies.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(rank * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(index, 0)] / 1e6;
+    }
+
+    private static String encode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The durations of one phase, recorded without locking since each round-trip records at most once per phase.
+     */
+    private static final class PhaseStatistics
+    {
+        private final long[] latencies;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        PhaseStatistics(int capacity)
+        {
+            this.latencies = new long[capacity];
+        }
+
+        void record(long nanos)
+        {
+            int index = count.getAndIncrement();
+            if (index < latencies.length) {
+                latencies[index] = nanos;
+            }
+        }
+
+        long[] getSortedLatencies()
+        {
+            long[] sorted = Arrays.copyOf(latencies, Math.min(count.get(), latencies.length));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.identityoauth.IdentityOAuthException;
+import com.xwiki.identityoauth.IdentityOAuthHttpClient;
+import com.xwiki.identityoauth.IdentityOAuthProvider;
+
+/**
+ * IdentityOAuthProvider implementation talking to the {@link MockAuthorizationServer}. It is configured as the other
+ * providers, with the URL of the mock server as {@code serverUrl} in addition to the client id and redirect URL.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+@Component
+@Named(LoadTestIdentityOAuthProvider.PROVIDER_HINT)
+@Singleton
+public class LoadTestIdentityOAuthProvider implements IdentityOAuthProvider
+{
+    protected static final String PROVIDER_HINT = "loadtest";
+
+    private static final String AUTHORIZATION = "Authorization";
+
+    private static final String BEARER = "Bearer ";
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private IdentityOAuthHttpClient httpClient;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private String providerHint = PROVIDER_HINT;
+
+    private String serverUrl;
+
+    private String clientId;
+
+    private String secret;
+
+    private String redirectUrl;
+
+    @Override
+    public void initialize(Map<String, String> config)
+    {
+        this.serverUrl = StringUtils.removeEnd(config.get("serverUrl"), "/");
+        this.clientId = StringUtils.defaultString(config.get("clientid"), PROVIDER_HINT);
+        this.secret = StringUtils.defaultString(config.get("secret"));
+        this.redirectUrl = config.get("redirectUrl");
+    }
+
+    @Override
+    public boolean isActive()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        return serverUrl != null && redirectUrl != null;
+    }
+
+    @Override
+    public String getProviderHint()
+    {
+        return providerHint;
+    }
+
+    @Override
+    public void setProviderHint(String hint)
+    {
+        this.providerHint = hint;
+    }
+
+    @Override
+    public String validateConfiguration()
+    {
+        return serverUrl != null ? "ok" : "idoauth.loadtest.missingServerUrl";
+    }
+
+    @Override
+    public List<String> getMinimumScopes()
+    {
+        return Arrays.asList("openid", "profile", "email");
+    }
+
+    @Override
+    public String getRemoteAuthorizationUrl(String redirectUrl)
+    {
+        return serverUrl + '/' + MockAuthorizationServer.AUTHORIZE + "?response_type=code&client_id="
+            + encode(clientId) + "&redirect_uri=" + encode(this.redirectUrl) + "&scope="
+            + encode(String.join(" ", getMinimumScopes())) + "&state=" + encode(StringUtils.defaultString(redirectUrl));
+    }
+
+    @Override
+    public Pair<String, Date> createToken(String authCode)
+    {
+        String form = "grant_type=authorization_code&code=" + encode(authCode) + "&redirect_uri="
+            + encode(redirectUrl) + "&client_id=" + encode(clientId) + "&client_secret=" + encode(secret);
+        JsonNode json = readJson(httpClient.newRequest(URI.create(serverUrl + '/' + MockAuthorizationServer.TOKEN))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(form)));
+        Date expiry = new Date(System.currentTimeMillis() + json.path("expires_in").asLong(3600) * 1000);
+        return new ImmutablePair<>(json.path("access_token").asText(), expiry);
+    }
+
+    @Override
+    public String readAuthorizationFromReturn(Map<String, String[]> params)
+    {
+        String[] code = params.get("code");
+        return code != null && code.length > 0 ? code[0] : null;
+    }
+
+    @Override
+    public AbstractIdentityDescription fetchIdentityDetails(String token)
+    {
+        JsonNode json = readJson(httpClient.newRequest(URI.create(serverUrl + '/' + MockAuthorizationServer.USERINFO))
+            .header(AUTHORIZATION, BEARER + token));
+        LoadTestIdentityDescription id = new LoadTestIdentityDescription(serverUrl);
+        id.internalId = json.path("sub").asText();
+        id.firstName = json.path("given_name").asText();
+        id.lastName = json.path("family_name").asText();
+        id.emails.add(json.path("email").asText());
+        id.userImageUrl = json.path("picture").asText(null);
+        return id;
+    }
+
+    @Override
+    public Triple<InputStream, String, String> fetchUserImage(Date ifModifiedSince, AbstractIdentityDescription id,
+        String token)
+    {
+        Pair<Triple<InputStream, String, String>, String> image = fetchUserImage(ifModifiedSince, null, id, token);
+        return image != null ? image.getLeft() : null;
+    }
+
+    @Override
+    public Pair<Triple<InputStream, String, String>, String> fetchUserImage(Date ifModifiedSince, String ifNoneMatch,
+        AbstractIdentityDescription id, String token)
+    {
+        if (id.userImageUrl == null) {
+            return null;
+        }
+        HttpRequest.Builder request =
+            httpClient.newRequest(URI.create(id.userImageUrl)).header(AUTHORIZATION, BEARER + token);
+        if (ifModifiedSince != null) {
+            request.header("If-Modified-Since",
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(ifModifiedSince.toInstant().atZone(ZoneOffset.UTC)));
+        }
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        try {
+            HttpResponse<InputStream> response =
+                httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() == 304) {
+                response.body().close();
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new IdentityOAuthException("Picture request answered with status " + response.statusCode());
+            }
+            return Pair.of(new ImmutableTriple<>(response.body(),
+                response.headers().firstValue("Content-Type").orElse("image/png"), id.internalId + ".png"),
+                response.headers().firstValue("ETag").orElse(null));
+        } catch (IOException e) {
+            throw new IdentityOAuthException("Trouble at fetching the picture.", e);
+        }
+    }
+
+    @Override
+    public boolean enrichUserObject(AbstractIdentityDescription idDescription, XWikiDocument doc)
+    {
+        return false;
+    }
+
+    @Override
+    public void receiveFreshToken(String token)
+    {
+        // Not needed
+    }
+
+    @Override
+    public void setConfigPage(String page)
+    {
+        // Not needed
+    }
+
+    private JsonNode readJson(HttpRequest.Builder request)
+    {
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                log.debug("Mock server answered [{}] to [{}].", response.statusCode(), response.uri());
+                throw new IdentityOAuthException(
+                    "Request to " + response.uri().getPath() + " answered with status " + response.statusCode());
+            }
+            return objectMapper.readTree(response.body());
+        } catch (IOException e) {
+            throw new IdentityOAuthException("Trouble at talking to the mock server.", e);
+        }
+    }
+
+    private static String encode(String value)
+    {
+        return URLEncoder.encode(StringUtils.defaultString(value), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The identity described by the userinfo endpoint of the mock server.
+     */
+    static class LoadTestIdentityDescription extends AbstractIdentityDescription
+    {
+        private final String issuerURL;
+
+        LoadTestIdentityDescription(String issuerURL)
+        {
+            this.issuerURL = issuerURL;
+        }
+
+        @Override
+        public String getIssuerURL()
+        {
+            return issuerURL;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The settings of the load test, read from command-line arguments of the form {@code --name=value}. The behaviour of
+ * each endpoint of the {@link MockAuthorizationServer} is set by the {@code latency.<endpoint>} (in milliseconds) and
+ * {@code errors.<endpoint>} (a ratio between 0 and 1) settings, e.g. {@code --latency.token=80 --errors.token=0.01}.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public class LoadTestSettings
+{
+    private static final String PREFIX = "--";
+
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * @param args the command-line arguments.
+     */
+    public LoadTestSettings(String[] args)
+    {
+        for (String arg : args) {
+            if (!arg.startsWith(PREFIX)) {
+                throw new IllegalArgumentException("Unexpected argument [" + arg + "], use --name=value.");
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                values.put(arg.substring(PREFIX.length()), "true");
+            } else {
+                values.put(arg.substring(PREFIX.length(), equals), arg.substring(equals + 1));
+            }
+        }
+    }
+
+    /**
+     * @param name         the name of the setting.
+     * @param defaultValue the value if the setting is not given.
+     * @return the value of the setting.
+     */
+    public String get(String name, String defaultValue)
+    {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * @param name         the name of the setting.
+     * @param defaultValue the value if the setting is not given.
+     * @return the value of the setting.
+     */
+    public int getInt(String name, int defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * @param name         the name of the setting.
+     * @param defaultValue the value if the setting is not given.
+     * @return the value of the setting.
+     */
+    public double getDouble(String name, double defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * @param endpoint the name of an endpoint of the mock server: authorize, token, userinfo or photo.
+     * @return the delay added to the answers of this endpoint, in milliseconds.
+     */
+    public int getLatency(String endpoint)
+    {
+        return getInt("latency." + endpoint, 0);
+    }
+
+    /**
+     * @param endpoint the name of an endpoint of the mock server: authorize, token, userinfo or photo.
+     * @return the ratio of the requests to this endpoint answered with a server error.
+     */
+    public double getErrorRate(String endpoint)
+    {
+        return getDouble("errors." + endpoint, 0);
+    }
+}
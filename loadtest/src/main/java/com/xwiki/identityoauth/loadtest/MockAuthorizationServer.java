@@ -0,0 +1,314 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.identityoauth.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an OAuth 2 / OpenID Connect provider, answering from memory. It offers the authorization endpoint,
+ * which approves at once the user given as {@code login_hint} (or a random one), the token, userinfo and photo
+ * endpoints. Each endpoint can be slowed down and made to fail at a given rate, see {@link LoadTestSettings}.
+ * <p>
+ * The access tokens carry the subject they were issued for, so that the server holds no state besides the pending
+ * authorization codes.
+ *
+ * @version $Id$
+ * @since 1.9.1
+ */
+public class MockAuthorizationServer
+{
+    /**
+     * The endpoint the browser is sent to by the provider.
+     */
+    public static final String AUTHORIZE = "authorize";
+
+    /**
+     * The endpoint exchanging the authorization codes for tokens.
+     */
+    public static final String TOKEN = "token";
+
+    /**
+     * The endpoint describing the user of a token.
+     */
+    public static final String USERINFO = "userinfo";
+
+    /**
+     * The endpoint serving the pictures of the users.
+     */
+    public static final String PHOTO = "photo";
+
+    private static final String[] ENDPOINTS = { AUTHORIZE, TOKEN, USERINFO, PHOTO };
+
+    private static final String TOKEN_PREFIX = "at.";
+
+    private static final String BEARER = "Bearer ";
+
+    private static final String JSON = "application/json";
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    // A 1x1 transparent PNG.
+    private static final byte[] PHOTO_CONTENT = Base64.getDecoder().decode(
+        "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==");
+
+    private final LoadTestSettings settings;
+
+    private final int userCount;
+
+    private final Map<String, String> pendingCodes = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> injectedErrors = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param settings the settings of the load test, including the port ({@code mock.port}, 8099 by default) and the
+     *                 number of users known to the server ({@code users}, 1000 by default).
+     */
+    public MockAuthorizationServer(LoadTestSettings settings)
+    {
+        this.settings = settings;
+        this.userCount = settings.getInt("users", 1000);
+        for (String endpoint : ENDPOINTS) {
+            requests.put(endpoint, new AtomicLong());
+            injectedErrors.put(endpoint, new AtomicLong());
+        }
+    }
+
+    /**
+     * Starts the server in the background.
+     *
+     * @throws IOException if the port cannot be bound.
+     */
+    public void start() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(settings.getInt("mock.port", 8099)), 256);
+        // The injected latencies block the threads: they must not limit the concurrency of the test.
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Mock OAuth server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext('/' + AUTHORIZE, endpoint(AUTHORIZE, this::authorize));
+        server.createContext('/' + TOKEN, endpoint(TOKEN, this::token));
+        server.createContext('/' + USERINFO, endpoint(USERINFO, this::userinfo));
+        server.createContext('/' + PHOTO + '/', endpoint(PHOTO, this::photo));
+        server.start();
+    }
+
+    /**
+     * Stops the server, without waiting for the requests being answered.
+     */
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL of the server as seen by the wiki ({@code mock.url}, by default on localhost), to be set as
+     *         {@code serverUrl} in the configuration of the provider.
+     */
+    public String getURL()
+    {
+        return settings.get("mock.url", "http://localhost:" + server.getAddress().getPort());
+    }
+
+    /**
+     * @return for each endpoint, the number of requests received and of errors injected.
+     */
+    public Map<String, long[]> getCounters()
+    {
+        Map<String, long[]> counters = new HashMap<>();
+        for (String endpoint : ENDPOINTS) {
+            counters.put(endpoint, new long[] { requests.get(endpoint).get(), injectedErrors.get(endpoint).get() });
+        }
+        return counters;
+    }
+
+    private HttpHandler endpoint(String name, HttpHandler handler)
+    {
+        return exchange -> {
+            try {
+                requests.get(name).incrementAndGet();
+                int latency = settings.getLatency(name);
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                if (ThreadLocalRandom.current().nextDouble() < settings.getErrorRate(name)) {
+                    injectedErrors.get(name).incrementAndGet();
+                    send(exchange, 503, JSON, "{\"error\":\"temporarily_unavailable\"}");
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void authorize(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+        String redirectUri = params.get("redirect_uri");
+        if (redirectUri == null) {
+            send(exchange, 400, JSON, "{\"error\":\"invalid_request\"}");
+            return;
+        }
+        String subject = params.getOrDefault("login_hint", "user" + ThreadLocalRandom.current().nextInt(userCount));
+        String code = UUID.randomUUID().toString();
+        pendingCodes.put(code, subject);
+        StringBuilder location = new StringBuilder(redirectUri);
+        location.append(redirectUri.indexOf('?') < 0 ? '?' : '&').append("code=").append(code);
+        if (params.containsKey("state")) {
+            location.append("&state=").append(URLEncoder.encode(params.get("state"), StandardCharsets.UTF_8));
+        }
+        exchange.getResponseHeaders().set("Location", location.toString());
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private void token(HttpExchange exchange) throws IOException
+    {
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Map<String, String> params = parseForm(body);
+        // The codes are single-use, as at a real provider.
+        String subject = params.get("code") != null ? pendingCodes.remove(params.get("code")) : null;
+        if (!"authorization_code".equals(params.get("grant_type")) || subject == null) {
+            send(exchange, 400, JSON, "{\"error\":\"invalid_grant\"}");
+            return;
+        }
+        String token = TOKEN_PREFIX + subject + '.' + UUID.randomUUID();
+        send(exchange, 200, JSON,
+            "{\"access_token\":\"" + token + "\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+    }
+
+    private void userinfo(HttpExchange exchange) throws IOException
+    {
+        String subject = getSubject(exchange);
+        if (subject == null) {
+            send(exchange, 401, JSON, "{\"error\":\"invalid_token\"}");
+            return;
+        }
+        URI photo = URI.create(getURL() + '/' + PHOTO + '/' + subject);
+        send(exchange, 200, JSON, "{\"sub\":\"" + subject + "\",\"given_name\":\"Load\",\"family_name\":\"" + subject
+            + "\",\"email\":\"" + subject + "@loadtest.example.com\",\"picture\":\"" + photo + "\"}");
+    }
+
+    private void photo(HttpExchange exchange) throws IOException
+    {
+        if (getSubject(exchange) == null) {
+            send(exchange, 401, JSON, "{\"error\":\"invalid_token\"}");
+            return;
+        }
+        // All the users have the same picture, which never changes.
+        String etag = "\"loadtest-1\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set(CONTENT_TYPE, "image/png");
+        exchange.sendResponseHeaders(200, PHOTO_CONTENT.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(PHOTO_CONTENT);
+        }
+    }
+
+    private String getSubject(HttpExchange exchange)
+    {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(BEARER + TOKEN_PREFIX)) {
+            return null;
+        }
+        String token = authorization.substring(BEARER.length() + TOKEN_PREFIX.length());
+        int dot = token.lastIndexOf('.');
+        return dot > 0 ? token.substring(0, dot) : null;
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(CONTENT_TYPE, contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseForm(String form)
+    {
+        Map<String, String> params = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return params;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Runs the server alone, e.g. when the driver runs on another machine.
+     *
+     * @param args the settings, see {@link LoadTestSettings}.
+     * @throws Exception if the server cannot be started.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        MockAuthorizationServer server = new MockAuthorizationServer(new LoadTestSettings(args));
+        server.start();
+        System.out.println("Mock OAuth server listening at " + server.getURL());
+        Thread.currentThread().join();
+    }
+}